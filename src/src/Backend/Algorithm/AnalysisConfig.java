@@ -0,0 +1,136 @@
+package Backend.Algorithm;
+
+import java.util.Objects;
+
+/**
+ * Time and frequency resolution of an analysis. Transform, Normalizer, the characteristics and their saved files all
+ * take their dimensions from one of these, so analyses made with different configs can't be compared.
+ * How to use: Pass a preset (or your own) to Transform, and every later step gets it from there.
+ * FAST halves both resolutions for bulk library ingest, BALANCED is the original resolution, PRECISE doubles them.
+ * Classes given no config use getDefault, which is BALANCED unless the analysis.preset system property names another.
+ */
+public final class AnalysisConfig {
+  public static final AnalysisConfig FAST = new AnalysisConfig("FAST", 20, 30, 8);
+  // 40 time samples per second, 10 octaves * 6 bins per octave, and a 4 Hz bottom filter.
+  public static final AnalysisConfig BALANCED = new AnalysisConfig("BALANCED", 40, 60, 4);
+  public static final AnalysisConfig PRECISE = new AnalysisConfig("PRECISE", 80, 120, 2);
+  private static final AnalysisConfig[] PRESETS = {FAST, BALANCED, PRECISE};
+  private static final AnalysisConfig DEFAULT = preset(System.getProperty("analysis.preset", "BALANCED"), BALANCED);
+
+  private final String name;
+  // Time samples per second, and filter width of the bottom bin in Hz.
+  private final double timeResolution, bottomFilterWidth;
+  // Frequency bins from Transform.BOTTOM_FREQUENCY to Transform.TOP_FREQUENCY.
+  private final int frequencyResolution;
+
+  public AnalysisConfig(String name, double timeResolution, int frequencyResolution, double bottomFilterWidth) {
+    if (name.isEmpty() || name.contains(" "))
+      throw new IllegalArgumentException("AnalysisConfig: Name must be one word, was \"" + name + "\"");
+    if (!(timeResolution > 0) || frequencyResolution < 1 || !(bottomFilterWidth > 0))
+      throw new IllegalArgumentException("AnalysisConfig: Resolutions and filter width must be positive, were "
+          + timeResolution + ", " + frequencyResolution + " and " + bottomFilterWidth);
+    this.name = name;
+    this.timeResolution = timeResolution;
+    this.frequencyResolution = frequencyResolution;
+    this.bottomFilterWidth = bottomFilterWidth;
+  }
+
+  public static AnalysisConfig getDefault() {
+    return DEFAULT;
+  }
+
+  // Preset by name, ignoring case.
+  public static AnalysisConfig preset(String name) {
+    for (AnalysisConfig preset : PRESETS)
+      if (preset.name.equalsIgnoreCase(name))
+        return preset;
+    throw new IllegalArgumentException("AnalysisConfig: No preset named " + name + ", use FAST, BALANCED or PRECISE");
+  }
+
+  // Same as preset, but gives fallback with a warning when there is no such preset. getDefault uses this, so a
+  // mistyped analysis.preset doesn't stop the class from loading.
+  public static AnalysisConfig preset(String name, AnalysisConfig fallback) {
+    try {
+      return preset(name);
+    } catch (IllegalArgumentException e) {
+      System.out.println(e.getMessage() + ". Using " + fallback.name + " instead.");
+      return fallback;
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  public double getTimeResolution() {
+    return timeResolution;
+  }
+
+  public int getFrequencyResolution() {
+    return frequencyResolution;
+  }
+
+  public double getBottomFilterWidth() {
+    return bottomFilterWidth;
+  }
+
+  // Tells you the frequency of any bin.
+  public double frequencyAtBin(int index) {
+    return Transform.BOTTOM_FREQUENCY * Math.pow(Transform.TOP_BOTTOM_RATIO, (double) index / frequencyResolution);
+  }
+
+  // Width of a bin's filter in Hz. Grows with frequency, so every bin has the same Q.
+  double filterWidth(int frequencyBin) {
+    return bottomFilterWidth * Math.pow(Transform.TOP_BOTTOM_RATIO, (double) frequencyBin / frequencyResolution);
+  }
+
+  int windowLength(int frequencyBin, int sampleRate) {
+    return (int) Math.ceil(sampleRate / filterWidth(frequencyBin));
+  }
+
+  //region Saving
+  // One line that fromHeader turns back into this config, for the start of saved files.
+  public String toHeader() {
+    return name + " " + timeResolution + " " + frequencyResolution + " " + bottomFilterWidth;
+  }
+
+  // Gives the preset itself when the dimensions match one.
+  public static AnalysisConfig fromHeader(String header) {
+    String[] parts = header.trim().split(" ");
+    if (parts.length != 4)
+      throw new IllegalArgumentException("AnalysisConfig: Header needs 4 values, was \"" + header + "\"");
+    try {
+      return of(parts[0], Double.parseDouble(parts[1]), Integer.parseInt(parts[2]), Double.parseDouble(parts[3]));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("AnalysisConfig: Invalid header \"" + header + "\"");
+    }
+  }
+
+  // Same as the constructor, but gives the preset itself when the dimensions match one.
+  public static AnalysisConfig of(String name, double timeResolution, int frequencyResolution,
+      double bottomFilterWidth) {
+    AnalysisConfig config = new AnalysisConfig(name, timeResolution, frequencyResolution, bottomFilterWidth);
+    for (AnalysisConfig preset : PRESETS)
+      if (preset.equals(config))
+        return preset;
+    return config;
+  }
+  //endregion
+
+  // Same dimensions, whatever the name.
+  @Override
+  public boolean equals(Object o) {
+    return o instanceof AnalysisConfig other && timeResolution == other.timeResolution
+        && frequencyResolution == other.frequencyResolution && bottomFilterWidth == other.bottomFilterWidth;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(timeResolution, frequencyResolution, bottomFilterWidth);
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
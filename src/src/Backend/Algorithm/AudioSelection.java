@@ -0,0 +1,17 @@
+package Backend.Algorithm;
+
+import java.util.List;
+
+/**
+ * Chooses which parts of a song Transform analyses. Time samples outside the chosen regions are left out of the
+ * spectrogram, and Transform.getTrimmedSeconds tells you where they were.
+ * How to use: Pass a SilenceGate or Excerpts to Transform.
+ */
+public interface AudioSelection {
+  // [start, end) audio sample regions of the first length samples to transform, in order and not overlapping.
+  List<int[]> select(short[][] channels, int length, int sampleRate);
+
+  // Whether characteristics of the chosen regions are only an estimate of the whole song's when something is
+  // left out.
+  boolean isApproximate();
+}
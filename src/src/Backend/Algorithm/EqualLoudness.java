@@ -1,11 +1,14 @@
 package Backend.Algorithm;
 
 import Backend.Helper.PrintHelper;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 
 /**
  * @author Ethan Carnahan
  * Converts loudness from decibels to phons based on frequency.
  * See <a href="https://www.desmos.com/calculator/n90bihrual">how I calculate it.</a>
+ * Use a Table when converting many values of the same frequency bins.
  */
 public class EqualLoudness {
   //region Equal loudness values
@@ -26,6 +29,10 @@ public class EqualLoudness {
   //endregion
 
   //region Methods
+  // dB between lookups of tables from EqualLoudness.table.
+  private static final double DEFAULT_DB_STEP = 0.1;
+  private static final Map<AnalysisConfig, Table> TABLES = new ConcurrentHashMap<>();
+
   public static double phonsToDb(double phons, double frequency) {
     // Get constants
     double valTf = interpolate(Tf, frequency);
@@ -44,11 +51,21 @@ public class EqualLoudness {
   }
 
   public static double dbToPhons(double dB, double frequency) {
-    // Get constants
-    double valTf = interpolate(Tf, frequency);
-    double valAf = interpolate(af, frequency);
-    double valLu = interpolate(Lu, frequency);
+    return dbToPhons(dB, interpolate(Tf, frequency), interpolate(af, frequency), interpolate(Lu, frequency));
+  }
 
+  // Perceived loudness, which doubles every 10 phons.
+  public static double phonsToLoudness(double phons) {
+    return Math.pow(2, phons / 10);
+  }
+
+  // Table of the bins of config, with lookups every DEFAULT_DB_STEP dB. Made once per config.
+  public static Table table(AnalysisConfig config) {
+    return TABLES.computeIfAbsent(config, key -> new Table(key, DEFAULT_DB_STEP));
+  }
+
+  // dbToPhons with the constants already interpolated.
+  private static double dbToPhons(double dB, double valTf, double valAf, double valLu) {
     // Calculate big terms
     double a = Math.pow(10, ( (valAf / 10) * (dB + valLu - 94) ) );
     double b = Math.pow(0.4 * Math.pow(10, ( ( (valTf + valLu) / 10) - 9) ), valAf);
@@ -58,6 +75,67 @@ public class EqualLoudness {
     return 40 * Math.log10( (af / 0.00447) + 1.15);
   }
 
+  /**
+   * Equal loudness constants of each frequency bin of an AnalysisConfig, so they're interpolated once instead of on
+   * every conversion, and a dB to perceived loudness lookup table for each bin.
+   * How to use: Get one from EqualLoudness.table, or make one with your own dB step. perceivedLoudness linearly
+   * interpolates the lookup table, which is within LOOKUP_TOLERANCE of exactPerceivedLoudness at the default step.
+   * dB outside MIN_DB to MAX_DB use the exact formula.
+   */
+  public static final class Table {
+    public static final double MIN_DB = -40, MAX_DB = 160;
+    // Largest error of perceivedLoudness relative to exactPerceivedLoudness, or absolute below 1 (about 0 phons).
+    public static final double LOOKUP_TOLERANCE = 1e-4;
+
+    private final double dbStep;
+    private final double[] tf, af, lu;
+    // Perceived loudness of each bin at MIN_DB, MIN_DB + dbStep, ..., MAX_DB, one bin after another.
+    private final float[] lookup;
+    private final int points;
+
+    public Table(AnalysisConfig config, double dbStep) {
+      if (!(dbStep > 0))
+        throw new IllegalArgumentException("EqualLoudness: dB step must be positive, was " + dbStep);
+      int bins = config.getFrequencyResolution();
+      this.dbStep = dbStep;
+      tf = new double[bins];
+      af = new double[bins];
+      lu = new double[bins];
+      points = (int) Math.ceil((MAX_DB - MIN_DB) / dbStep) + 1;
+      lookup = new float[bins * points];
+      for (int bin = 0; bin < bins; bin++) {
+        double frequency = config.frequencyAtBin(bin);
+        tf[bin] = interpolate(Tf, frequency);
+        af[bin] = interpolate(EqualLoudness.af, frequency);
+        lu[bin] = interpolate(Lu, frequency);
+        for (int i = 0; i < points; i++)
+          lookup[(bin * points) + i] = (float) exactPerceivedLoudness(bin, MIN_DB + (i * dbStep));
+      }
+    }
+
+    public double getDbStep() {
+      return dbStep;
+    }
+
+    public double dbToPhons(int bin, double dB) {
+      return EqualLoudness.dbToPhons(dB, tf[bin], af[bin], lu[bin]);
+    }
+
+    public double exactPerceivedLoudness(int bin, double dB) {
+      return phonsToLoudness(dbToPhons(bin, dB));
+    }
+
+    public double perceivedLoudness(int bin, double dB) {
+      double position = (dB - MIN_DB) / dbStep;
+      int index = (int) position;
+      if (position < 0 || index >= points - 1)
+        return exactPerceivedLoudness(bin, dB);
+      double fraction = position - index;
+      int i = (bin * points) + index;
+      return lookup[i] + ((lookup[i + 1] - lookup[i]) * fraction);
+    }
+  }
+
   // Used to interpolate for frequencies between/outside the frequencies array.
   private static double interpolate(double[] outArray, double frequency) {
     // Check array bounds
@@ -88,16 +166,16 @@ public class EqualLoudness {
 
   // Print the equal loudness contours of the 0, 10, 20, ..., 90 phon lines.
   public static void main(String[] args) {
-    double[][] phonLines = new double[10][Transform.FREQUENCY_RESOLUTION];
+    AnalysisConfig config = AnalysisConfig.BALANCED;
+    double[][] phonLines = new double[10][config.getFrequencyResolution()];
     for (int i = 0; i < 100; i += 10) {
-      for (int j = 0; j < Transform.FREQUENCY_RESOLUTION; j++) {
-        double frequency = Transform.BOTTOM_FREQUENCY * Math.pow(Transform.TOP_BOTTOM_RATIO,
-            (double) j / Transform.FREQUENCY_RESOLUTION);
+      for (int j = 0; j < config.getFrequencyResolution(); j++) {
+        double frequency = config.frequencyAtBin(j);
         phonLines[i/10][j] = phonsToDb(i, frequency);
       }
     }
 
-    PrintHelper.printFrequencies();
+    PrintHelper.printFrequencies(config);
     for (int i = 0; i < 100; i += 10) {
       PrintHelper.printValues(i + " phons", phonLines[i/10]);
     }
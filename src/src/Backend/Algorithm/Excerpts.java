@@ -0,0 +1,68 @@
+package Backend.Algorithm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Picks a few excerpts of a song for a quick preview analysis, so the transform and characteristics cost about the
+ * same for every song no matter how long it is. Characteristics made from excerpts are marked approximate, and a full
+ * analysis of the same song replaces them. Each excerpt starts a new region of the transform (see
+ * Transform.getRegionStarts), so the jump from one excerpt to the next isn't counted as a change.
+ * How to use: Pass DEFAULT (or your own) to Transform. Songs too short for all the excerpts are analysed whole.
+ */
+public class Excerpts implements AudioSelection {
+  // Three 20 second excerpts at 20%, 50% and 80% of the song.
+  public static final Excerpts DEFAULT = new Excerpts(20, 0.2, 0.5, 0.8);
+
+  private final double seconds;
+  private final double[] positions;
+
+  /**
+   * @param seconds Length of each excerpt.
+   * @param positions Where each excerpt is centered, from 0 (start of the song) to 1 (end), in increasing order.
+   */
+  public Excerpts(double seconds, double... positions) {
+    if (!(seconds > 0) || positions.length == 0)
+      throw new IllegalArgumentException("Excerpts: Needs at least one excerpt of positive length");
+    for (int i = 0; i < positions.length; i++)
+      if (positions[i] < 0 || positions[i] > 1 || (i > 0 && positions[i] < positions[i - 1]))
+        throw new IllegalArgumentException("Excerpts: Positions must be increasing and between 0 and 1");
+    this.seconds = seconds;
+    this.positions = positions.clone();
+  }
+
+  public double getSeconds() {
+    return seconds;
+  }
+
+  public double[] getPositions() {
+    return positions.clone();
+  }
+
+  // Excerpts that would reach past the ends of the song are moved inside it. Overlapping excerpts are joined.
+  @Override
+  public List<int[]> select(short[][] channels, int length, int sampleRate) {
+    int excerpt = (int) Math.round(seconds * sampleRate);
+    List<int[]> result = new ArrayList<>(positions.length);
+    if ((long) excerpt * positions.length >= length) {
+      result.add(new int[]{0, length});
+      return result;
+    }
+
+    for (double position : positions) {
+      int start = (int) Math.round((position * length) - (excerpt / 2.0));
+      start = Math.max(0, Math.min(start, length - excerpt));
+      int[] previous = result.isEmpty() ? null : result.get(result.size() - 1);
+      if (previous != null && start <= previous[1])
+        previous[1] = Math.max(previous[1], start + excerpt);
+      else
+        result.add(new int[]{start, start + excerpt});
+    }
+    return result;
+  }
+
+  @Override
+  public boolean isApproximate() {
+    return true;
+  }
+}
@@ -0,0 +1,85 @@
+package Backend.Algorithm;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-place iterative radix-2 fast Fourier transform of complex data.
+ * How to use: Get one with forSize, then call transform on arrays of that size.
+ * Twiddle factors and the bit-reversal order are made once per size and shared between threads.
+ */
+class FFT {
+  private static final ConcurrentHashMap<Integer, FFT> ffts = new ConcurrentHashMap<>();
+
+  private final int size;
+  private final int[] reversed;
+  private final double[] cos, sin;
+
+  private FFT(int size) {
+    if (size < 2 || Integer.bitCount(size) != 1)
+      throw new IllegalArgumentException("FFT: Size must be a power of 2, was " + size);
+    this.size = size;
+
+    int bits = Integer.numberOfTrailingZeros(size);
+    reversed = new int[size];
+    for (int i = 0; i < size; i++)
+      reversed[i] = Integer.reverse(i) >>> (32 - bits);
+
+    // Twiddle factors of the stage with half-length h are at [h, 2h), so each stage reads them in order.
+    cos = new double[size];
+    sin = new double[size];
+    for (int half = 1; half < size; half *= 2) {
+      for (int k = 0; k < half; k++) {
+        cos[half + k] = Math.cos(Math.PI * k / half);
+        sin[half + k] = -Math.sin(Math.PI * k / half);
+      }
+    }
+  }
+
+  static FFT forSize(int size) {
+    return ffts.computeIfAbsent(size, FFT::new);
+  }
+
+  int getSize() {
+    return size;
+  }
+
+  // X[k] = sum of x[n] * e^(-2 * pi * i * k * n / size), done in place.
+  void transform(double[] real, double[] imaginary) {
+    for (int i = 0; i < size; i++) {
+      int j = reversed[i];
+      if (j > i) {
+        double temp = real[i];
+        real[i] = real[j];
+        real[j] = temp;
+        temp = imaginary[i];
+        imaginary[i] = imaginary[j];
+        imaginary[j] = temp;
+      }
+    }
+
+    // First stage has no multiplications.
+    for (int a = 0; a < size; a += 2) {
+      double tr = real[a + 1], ti = imaginary[a + 1];
+      real[a + 1] = real[a] - tr;
+      imaginary[a + 1] = imaginary[a] - ti;
+      real[a] += tr;
+      imaginary[a] += ti;
+    }
+
+    for (int half = 2; half < size; half *= 2) {
+      int length = half * 2;
+      for (int start = 0; start < size; start += length) {
+        for (int k = 0; k < half; k++) {
+          double wr = cos[half + k], wi = sin[half + k];
+          int a = start + k, b = a + half;
+          double tr = (real[b] * wr) - (imaginary[b] * wi);
+          double ti = (real[b] * wi) + (imaginary[b] * wr);
+          real[b] = real[a] - tr;
+          imaginary[b] = imaginary[a] - ti;
+          real[a] += tr;
+          imaginary[a] += ti;
+        }
+      }
+    }
+  }
+}
@@ -1,209 +1,375 @@
 package Backend.Algorithm;
 
 import Backend.Algorithm.Reader.Channel;
+import Backend.Helper.AnalysisExecutor;
 import Backend.Helper.PrintHelper;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.concurrent.ForkJoinPool;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.RecursiveAction;
-import java.util.concurrent.RecursiveTask;
 
 /**
  * @author Ethan Carnahan
  * Sets a sound to a specified average volume, and then
  * converts fourier transform amplitudes from actual loudness to perceived loudness.
  * Perceived loudness is arbitrarily set so 0 phons = 100 loudness.
+ * The gain is solved on a dB histogram made in one pass over the transform, then applied with the conversion once.
+ * Conversions look up the config's EqualLoudness.Table.
  */
 public class Normalizer {
   //region Fields and public method
+  private final AnalysisConfig config;
   private final float[][] normalizedLeft, normalizedRight;
+  // Passed on from the transform.
+  private final double[][] trimmedSeconds;
+  private final int[] regionStarts;
+  private final boolean approximate;
   // A full amplitude sine wave will be treated as this volume.
   private static final double dbOfMax = 90;
   // The normalizer will try to set a fourier transform to this perceived volume +- errorBound.
   private static final double targetVolume = 256; // 80 phons
-  private static final double errorBound = 0.001, ratioMultiplier = 2;//, spreadDamp = 1;
+  private static final double errorBound = 0.001;
+  // Histogram buckets in dB, see Histogram.
+  private static final double MIN_DB = -40, MAX_DB = 160, DB_STEP = 0.1;
+  // Resolution of the histogram's sums in dB.
+  private static final double SUM_STEP = 1e-6;
+  private static final int BUCKETS = (int) Math.round((MAX_DB - MIN_DB) / DB_STEP);
+  // Gain search widens by BRACKET_DB at most MAX_BRACKETS times, then bisects at most MAX_BISECTIONS times.
+  private static final double BRACKET_DB = 12;
+  private static final int MAX_BRACKETS = 40, MAX_BISECTIONS = 60;
+  // Splitting of histogram and conversion tasks, see rowsPerTask.
+  private static final int TASKS_PER_THREAD = 2, MIN_ROWS_PER_TASK = 256;
 
   public Normalizer(Transform transform) {
-    float[][] left = transform.getFrequencyAmplitudes(Channel.LEFT);
-    float[][] right = transform.getFrequencyAmplitudes(Channel.RIGHT);
-
-    System.out.println("Normalizer: Running normalization on transform of " + left.length + " samples");
+    this(transform, false);
+  }
 
-    normalizedLeft = normalizeTransform(left);
-    normalizedRight = normalizeTransform(right);
+  // In place, the transform's own spectrograms are normalized and become the normalized arrays, so normalizing
+  // doesn't take any more memory than the transform. The transform then holds normalized values, so only use it
+  // when the transform isn't needed afterwards.
+  public Normalizer(Transform transform, boolean inPlace) {
+    config = transform.getConfig();
+    trimmedSeconds = transform.getTrimmedSeconds();
+    regionStarts = transform.getRegionStarts();
+    approximate = transform.isApproximate();
+    Spectrogram left = transform.getSpectrogram(Channel.LEFT);
+    Spectrogram right = transform.getSpectrogram(Channel.RIGHT);
+
+    System.out.println("Normalizer: Running normalization on transform of " + left.getFrameCount() + " samples");
+
+    normalizedLeft = inPlace ? left.getRows() : copy(left.getRows());
+    normalizedRight = (right == null) ? null : inPlace ? right.getRows() : copy(right.getRows());
+    normalizeInPlace(config, normalizedLeft, normalizedRight);
   }
 
   public Normalizer(float[][] left, float[][] right) {
-    System.out.println("Normalizer: Running normalization on transform of " + left.length + " samples");
+    this(left, right, AnalysisConfig.getDefault());
+  }
 
-    normalizedLeft = normalizeTransform(left);
-    normalizedRight = normalizeTransform(right);
+  // Arrays need config's number of frequency bins.
+  public Normalizer(float[][] left, float[][] right, AnalysisConfig config) {
+    this(left, right, config, false);
+  }
+
+  // In place, left and right themselves become the normalized arrays instead of copies of them, so normalizing
+  // doesn't take any more memory than the transform. Use it when the transform isn't needed afterwards.
+  public Normalizer(float[][] left, float[][] right, AnalysisConfig config, boolean inPlace) {
+    System.out.println("Normalizer: Running normalization on transform of " + left.length + " samples");
+    if (left[0].length != config.getFrequencyResolution())
+      throw new IllegalArgumentException("Normalizer: Transform has " + left[0].length + " frequency bins, "
+          + config + " needs " + config.getFrequencyResolution());
+    this.config = config;
+    trimmedSeconds = new double[0][];
+    regionStarts = new int[]{0};
+    approximate = false;
+
+    normalizedLeft = inPlace ? left : copy(left);
+    normalizedRight = inPlace ? right : copy(right);
+    normalizeInPlace(config, normalizedLeft, normalizedRight);
   }
 
   public float[][] getNormalized(Channel channel) {
     return (channel == Channel.LEFT ? normalizedLeft : normalizedRight);
   }
+
+  public AnalysisConfig getConfig() {
+    return config;
+  }
+
+  // Seconds the transform left out as silence, see Transform.getTrimmedSeconds.
+  public double[][] getTrimmedSeconds() {
+    return trimmedSeconds;
+  }
+
+  // See Transform.getRegionStarts.
+  public int[] getRegionStarts() {
+    return regionStarts;
+  }
+
+  // See Transform.isApproximate.
+  public boolean isApproximate() {
+    return approximate;
+  }
   //endregion
 
   //region Private methods
-  private static float[][] normalizeTransform(float[][] channel) {
-    // Check null
+  private static float[][] normalizeTransform(AnalysisConfig config, float[][] channel) {
+    float[][] result = copy(channel);
+    normalizeInPlace(config, result);
+    return result;
+  }
+
+  // Returns null for null.
+  private static float[][] copy(float[][] channel) {
     if (channel == null)
       return null;
-
-    // Copy array
     float[][] result = new float[channel.length][channel[0].length];
     for (int i = 0; i < channel.length; i++)
       System.arraycopy(channel[i], 0, result[i], 0, channel[0].length);
-
-    // Do nothing for silence
-    double currentVolume = getOverallVolume(channel);
-    if (currentVolume == 0)
-      return result;
-
-    // Find correct volume
-    while (Math.abs(currentVolume - targetVolume) > errorBound) {
-      float multiplier = (float) (1 + (((targetVolume / currentVolume) - 1) * ratioMultiplier));
-      multiply2DArray(result, multiplier);
-      currentVolume = getOverallVolume(result);
-    }
-
-    return loudnessToPerceivedLoudness(result);
+    return result;
   }
 
-  private static double getOverallVolume(float[][] channel) {
-    GetVolumeTask task = new GetVolumeTask(channel, 0, channel.length);
-    try (ForkJoinPool fjp = new ForkJoinPool()) {
-      return fjp.invoke(task) / (channel.length * Transform.FREQUENCY_RESOLUTION);
+  // Same as normalizeTransform, changing the arrays themselves. Null channels are skipped.
+  // Every channel's step runs as one task graph, so one channel fills threads the other one leaves idle.
+  private static void normalizeInPlace(AnalysisConfig config, float[][]... channels) {
+    HistogramTask[] tasks = new HistogramTask[channels.length];
+    List<Map<Thread, Histogram>> workerHistograms = new ArrayList<>(channels.length);
+    for (int c = 0; c < channels.length; c++) {
+      workerHistograms.add(new ConcurrentHashMap<>());
+      if (channels[c] != null)
+        tasks[c] = new HistogramTask(config, channels[c], workerHistograms.get(c), 0, channels[c].length,
+            rowsPerTask(channels[c].length));
+    }
+    AnalysisExecutor.getShared().invokeAll(tasks);
+
+    ConvertTask[] conversions = new ConvertTask[channels.length];
+    for (int c = 0; c < channels.length; c++) {
+      if (channels[c] == null)
+        continue;
+      Histogram histogram = Histogram.merge(workerHistograms.get(c).values());
+      // Do nothing for silence
+      if (histogram.isEmpty())
+        continue;
+      long cells = (long) channels[c].length * config.getFrequencyResolution();
+      double gainDb = solveGain(config, histogram, cells);
+      float gain = (float) Math.pow(10, gainDb / 20);
+      conversions[c] = new ConvertTask(EqualLoudness.table(config), channels[c], 0, channels[c].length, gain,
+          rowsPerTask(channels[c].length));
     }
+    AnalysisExecutor.getShared().invokeAll(conversions);
   }
 
-  // Needs to be divided by channel.length and Transform.FREQUENCY_RESOLUTION afterwards.
-  private static class GetVolumeTask extends RecursiveTask<Double> {
-    private final float[][] channel;
-    private final int start, end;
-    private static final int THRESHOLD = 1;
+  // A couple of tasks per thread, so threads that finish early can take over the rest of a slow one's work.
+  private static int rowsPerTask(int rows) {
+    int tasks = AnalysisExecutor.getShared().getMaxCoresPerJob() * TASKS_PER_THREAD;
+    return Math.max(MIN_ROWS_PER_TASK, (rows + tasks - 1) / tasks);
+  }
 
-    public GetVolumeTask(float[][] channel, int start, int end) {
-      this.channel = channel;
-      this.start = start;
-      this.end = end;
+  // Gain in dB that sets the histogram's volume to targetVolume +- errorBound, found by bisection.
+  // Volume only grows with gain, so the target is bracketed by widening in BRACKET_DB steps first.
+  private static double solveGain(AnalysisConfig config, Histogram histogram, long cells) {
+    double volume = histogram.volume(config, 0, cells);
+    if (Math.abs(volume - targetVolume) <= errorBound)
+      return 0;
+    double low = 0, high = 0;
+    for (int i = 0; i < MAX_BRACKETS; i++) {
+      if (volume < targetVolume) {
+        low = high;
+        high += BRACKET_DB;
+        if (histogram.volume(config, high, cells) >= targetVolume)
+          break;
+      } else {
+        high = low;
+        low -= BRACKET_DB;
+        if (histogram.volume(config, low, cells) <= targetVolume)
+          break;
+      }
     }
 
-    @Override
-    protected Double compute() {
-      int length = end - start;
-      if (length <= THRESHOLD)
-        return partialVolume();
-
-      GetVolumeTask firstTask = new GetVolumeTask(channel, start, start + (length / 2));
-      firstTask.fork();
-      GetVolumeTask secondTask = new GetVolumeTask(channel, start + (length / 2), end);
-      Double secondResult = secondTask.compute();
-      Double firstResult = firstTask.join();
+    double middle = (low + high) / 2;
+    for (int i = 0; i < MAX_BISECTIONS; i++) {
+      middle = (low + high) / 2;
+      double middleVolume = histogram.volume(config, middle, cells);
+      if (Math.abs(middleVolume - targetVolume) <= errorBound)
+        break;
+      if (middleVolume < targetVolume)
+        low = middle;
+      else
+        high = middle;
+    }
+    return middle;
+  }
 
-      return firstResult + secondResult;
+  // Per-bin dB histogram of a channel's nonzero values, which is all normalization needs to know about them.
+  // Buckets are DB_STEP wide from MIN_DB to MAX_DB, values outside go in the end buckets. Each bucket also sums its
+  // values and stands for all of them at their mean, so a flat transform is within SUM_STEP and spread ones are
+  // within about 1e-6 of the full calculation. Sums are whole SUM_STEPs above the bucket's start, so merging gives
+  // the same histogram in any order and can't overflow with int counts. That is bins * BUCKETS of each, so
+  // HistogramTask only makes one per thread.
+  private static class Histogram {
+    private final int bins;
+    private final int[] counts;
+    private final long[] sums;
+    // Lowest and highest used bucket of each bin, so volume skips the empty ones.
+    private final int[] lowest, highest;
+
+    private Histogram(int bins) {
+      this.bins = bins;
+      counts = new int[bins * BUCKETS];
+      sums = new long[bins * BUCKETS];
+      lowest = new int[bins];
+      highest = new int[bins];
+      Arrays.fill(lowest, BUCKETS);
+      Arrays.fill(highest, -1);
     }
 
-    private Double partialVolume() {
-      double sum = 0.0;
+    private void add(int bin, double db) {
+      int bucket = (int) Math.floor((db - MIN_DB) / DB_STEP);
+      bucket = Math.max(0, Math.min(BUCKETS - 1, bucket));
+      counts[(bin * BUCKETS) + bucket]++;
+      sums[(bin * BUCKETS) + bucket] += Math.round((db - bucketStart(bucket)) / SUM_STEP);
+      lowest[bin] = Math.min(lowest[bin], bucket);
+      highest[bin] = Math.max(highest[bin], bucket);
+    }
 
-      for (int i = start; i < end; i++) {
-        double sampleSum = 0.0;
-        double[] perceivedLoudness = loudnessToPerceivedLoudness(channel[i]);
-        for (double loudness : perceivedLoudness)
-          sampleSum += loudness;
-        sum += sampleSum;
+    // Adds the others into the first one.
+    private static Histogram merge(Collection<Histogram> histograms) {
+      Histogram result = null;
+      for (Histogram histogram : histograms) {
+        if (result == null)
+          result = histogram;
+        else
+          result.merge(histogram);
       }
-
-      return sum;
+      return result;
     }
-  }
-
-  private static double loudnessToDb(double loudness) {
-    return dbOfMax + (20 * Math.log10(loudness / Short.MAX_VALUE));
-  }
 
-  private static double phonsToLoudness(double phons) {
-    return Math.pow(2, phons / 10);
-  }
-
-  // Convert loudness to perceived loudness.
-  private static double[] loudnessToPerceivedLoudness(float[] loudness) {
-    double[] result = new double[loudness.length];
-
-    for (int i = 0; i < result.length; i++) {
-      if (loudness[i] == 0.0) {
-        result[i] = 0.0;
-      } else {
-        double db = loudnessToDb(loudness[i]);
-        double frequency = Transform.frequencyAtBin(i);
-        double phons = EqualLoudness.dbToPhons(db, frequency);
-        result[i] = phonsToLoudness(phons);
+    private void merge(Histogram other) {
+      for (int i = 0; i < counts.length; i++) {
+        counts[i] += other.counts[i];
+        sums[i] += other.sums[i];
+      }
+      for (int bin = 0; bin < bins; bin++) {
+        lowest[bin] = Math.min(lowest[bin], other.lowest[bin]);
+        highest[bin] = Math.max(highest[bin], other.highest[bin]);
       }
     }
 
-    return result;
-  }
+    private static double bucketStart(int bucket) {
+      return MIN_DB + (bucket * DB_STEP);
+    }
 
-  private static float[][] loudnessToPerceivedLoudness(float[][] transform) {
-    float[][] result = new float[transform.length][transform[0].length];
+    private boolean isEmpty() {
+      for (int bin = 0; bin < bins; bin++)
+        if (highest[bin] >= 0)
+          return false;
+      return true;
+    }
 
-    for (int i = 0; i < result.length; i++) {
-      for (int j = 0; j < result[0].length; j++) {
-        if (transform[i][j] == 0.0) {
-          result[i][j] = 0.0f;
-        } else {
-          double db = loudnessToDb(transform[i][j]);
-          double frequency = Transform.frequencyAtBin(j);
-          double phons = EqualLoudness.dbToPhons(db, frequency);
-          result[i][j] = (float)phonsToLoudness(phons);
+    // Average perceived loudness of cells values (zeros included) after raising every nonzero value by gainDb.
+    private double volume(AnalysisConfig config, double gainDb, long cells) {
+      EqualLoudness.Table table = EqualLoudness.table(config);
+      double sum = 0;
+      for (int bin = 0; bin < bins; bin++) {
+        for (int bucket = lowest[bin]; bucket <= highest[bin]; bucket++) {
+          int count = counts[(bin * BUCKETS) + bucket];
+          if (count == 0)
+            continue;
+          double db = bucketStart(bucket) + ((double) sums[(bin * BUCKETS) + bucket] / count * SUM_STEP) + gainDb;
+          sum += count * table.perceivedLoudness(bin, db);
         }
       }
+      return sum / cells;
     }
-
-    return result;
   }
 
-  private static class MultiplyArrayTask extends RecursiveAction {
-    private final float[][] array;
-    private final int start, end;
-    private final float multiplier;
-    private static final int THRESHOLD = 1;
-
+  // Adds time samples [start, end) to the histogram of the thread running each block, in one pass. A block runs
+  // start to finish on one thread, so each histogram is only ever used by its own thread.
+  private static class HistogramTask extends RecursiveAction {
+    private final AnalysisConfig config;
+    private final float[][] channel;
+    private final Map<Thread, Histogram> histograms;
+    private final int start, end, threshold;
 
-    public MultiplyArrayTask(float[][] array, int start, int end, float multiplier) {
-      this.array = array;
+    public HistogramTask(AnalysisConfig config, float[][] channel, Map<Thread, Histogram> histograms, int start,
+        int end, int threshold) {
+      this.config = config;
+      this.channel = channel;
+      this.histograms = histograms;
       this.start = start;
       this.end = end;
-      this.multiplier = multiplier;
+      this.threshold = threshold;
     }
 
     @Override
     protected void compute() {
       int length = end - start;
-      if (length <= THRESHOLD) {
-        partialMultiply();
+      if (length <= threshold) {
+        partialHistogram();
         return;
       }
 
-      MultiplyArrayTask task1 = new MultiplyArrayTask(array, start, start + (length / 2), multiplier);
-      task1.fork();
-      MultiplyArrayTask task2 = new MultiplyArrayTask(array, start + (length / 2), end, multiplier);
-      task2.compute();
-      task1.join();
+      HistogramTask firstTask = new HistogramTask(config, channel, histograms, start, start + (length / 2),
+          threshold);
+      firstTask.fork();
+      new HistogramTask(config, channel, histograms, start + (length / 2), end, threshold).compute();
+      firstTask.join();
     }
 
-    private void partialMultiply() {
+    private void partialHistogram() {
+      Histogram result = histograms.computeIfAbsent(Thread.currentThread(),
+          thread -> new Histogram(config.getFrequencyResolution()));
       for (int i = start; i < end; i++)
-        for (int j = 0; j < array[0].length; j++)
-          array[i][j] *= multiplier;
+        for (int j = 0; j < channel[i].length; j++)
+          if (channel[i][j] != 0.0)
+            result.add(j, loudnessToDb(channel[i][j]));
     }
   }
 
-  private static void multiply2DArray(float[][] array, float multiplier) {
-    MultiplyArrayTask task = new MultiplyArrayTask(array, 0, array.length, multiplier);
-    try (ForkJoinPool fjp = new ForkJoinPool()) {
-      fjp.invoke(task);
+  private static double loudnessToDb(double loudness) {
+    return dbOfMax + (20 * Math.log10(loudness / Short.MAX_VALUE));
+  }
+
+  // Converts loudness times gain of time samples [start, end) to perceived loudness, in place.
+  private static class ConvertTask extends RecursiveAction {
+    private final EqualLoudness.Table table;
+    private final float[][] channel;
+    private final int start, end, threshold;
+    private final float gain;
+
+    public ConvertTask(EqualLoudness.Table table, float[][] channel, int start, int end, float gain, int threshold) {
+      this.table = table;
+      this.channel = channel;
+      this.start = start;
+      this.end = end;
+      this.gain = gain;
+      this.threshold = threshold;
+    }
+
+    @Override
+    protected void compute() {
+      int length = end - start;
+      if (length <= threshold) {
+        partialConvert();
+        return;
+      }
+
+      ConvertTask firstTask = new ConvertTask(table, channel, start, start + (length / 2), gain, threshold);
+      firstTask.fork();
+      new ConvertTask(table, channel, start + (length / 2), end, gain, threshold).compute();
+      firstTask.join();
+    }
+
+    private void partialConvert() {
+      for (int i = start; i < end; i++) {
+        float[] row = channel[i];
+        for (int j = 0; j < row.length; j++)
+          if (row[j] != 0.0f)
+            row[j] = (float) table.perceivedLoudness(j, loudnessToDb(row[j] * gain));
+      }
     }
   }
   //endregion
@@ -212,15 +378,16 @@ public class Normalizer {
   // Changing testVolume should have no effect. Changing targetVolume should.
   public static void main(String[] args) {
     float testVolume = Short.MAX_VALUE;
-    float[][] volume = new float[10000][Transform.FREQUENCY_RESOLUTION];
+    AnalysisConfig config = AnalysisConfig.getDefault();
+    float[][] volume = new float[10000][config.getFrequencyResolution()];
     for (float[] floats : volume)
       Arrays.fill(floats, testVolume);
 
     long startTime = System.nanoTime();
-    float[][] loudness = normalizeTransform(volume);
+    float[][] loudness = normalizeTransform(config, volume);
     System.out.println("Calculation time: " + ((System.nanoTime() - startTime) / 1000000000.0) + " seconds");
 
-    PrintHelper.printFrequencies();
+    PrintHelper.printFrequencies(config);
     PrintHelper.printValues("Loudness", loudness[5000]);
   }
 }
\ No newline at end of file
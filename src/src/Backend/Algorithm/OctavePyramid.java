@@ -0,0 +1,80 @@
+package Backend.Algorithm;
+
+/**
+ * A slice of audio low-pass filtered and downsampled by 2 once per octave. Level d has 1/2^d of the sample rate.
+ * Uses a Blackman-windowed half-band filter, which passes everything below 1/8 of the input sample rate and
+ * removes everything that would alias back into that range.
+ * How to use: Build one over the audio a batch of time samples needs, then read each level's samples.
+ * Sample m of level d is at getLevel(d)[getOffset(d) + m] and is audio sample first + (m * 2^d), so slices
+ * starting at multiples of 2^levels line up.
+ */
+class OctavePyramid {
+  // Filter reaches this many samples either side of the center.
+  static final int HALF_TAPS = 15;
+  private static final float[] FILTER = halfBandFilter();
+
+  private final float[][] levels;
+  // Level 0 is the samples it was built over, not a copy, so it starts at an offset.
+  private final int offset;
+
+  // Builds levels over samples[offset, offset + length). Audio sample first is at samples[offset], and first
+  // should be a multiple of 2^levels.
+  OctavePyramid(float[] samples, int offset, int length, int levelCount) {
+    levels = new float[levelCount + 1][];
+    levels[0] = samples;
+    this.offset = offset;
+    for (int d = 1; d <= levelCount; d++)
+      levels[d] = (d == 1) ? decimate(samples, offset, length) : decimate(levels[d - 1], 0, levels[d - 1].length);
+  }
+
+  float[] getLevel(int level) {
+    return levels[level];
+  }
+
+  int getOffset(int level) {
+    return (level == 0) ? offset : 0;
+  }
+
+  // Samples at each end of a slice that are wrong because the filter reached past the slice.
+  // Make slices this much longer than needed on both sides.
+  static int margin(int levelCount) {
+    return (HALF_TAPS * (2 << levelCount)) + (1 << levelCount);
+  }
+
+  // Halves input[offset, offset + length).
+  private static float[] decimate(float[] input, int offset, int length) {
+    float[] output = new float[length / 2];
+    int end = length - HALF_TAPS;
+    for (int m = 0; m < output.length; m++) {
+      if (2 * m < HALF_TAPS || 2 * m >= end)
+        continue; // inside the margin
+      int center = offset + (2 * m);
+      // Half-band filter: every other tap except the center one is 0.
+      float sum = FILTER[HALF_TAPS] * input[center];
+      for (int t = 1; t <= HALF_TAPS; t += 2)
+        sum += FILTER[HALF_TAPS + t] * (input[center - t] + input[center + t]);
+      output[m] = sum;
+    }
+    return output;
+  }
+
+  // Windowed sinc with its cutoff at 1/4 of the sample rate, scaled to a gain of 1.
+  private static float[] halfBandFilter() {
+    int taps = (2 * HALF_TAPS) + 1;
+    double[] filter = new double[taps];
+    double sum = 0.0;
+    for (int i = 0; i < taps; i++) {
+      int t = i - HALF_TAPS;
+      double sinc = (t == 0) ? 0.5 : Math.sin(Math.PI * t / 2) / (Math.PI * t);
+      double window = 0.42 - (0.5 * Math.cos(2 * Math.PI * (i + 1) / (taps + 1)))
+          + (0.08 * Math.cos(4 * Math.PI * (i + 1) / (taps + 1)));
+      filter[i] = sinc * window;
+      sum += filter[i];
+    }
+
+    float[] result = new float[taps];
+    for (int i = 0; i < taps; i++)
+      result[i] = (float) (filter[i] / sum);
+    return result;
+  }
+}
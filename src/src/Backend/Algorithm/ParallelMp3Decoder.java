@@ -0,0 +1,389 @@
+package Backend.Algorithm;
+
+import Backend.Algorithm.Reader.Channel;
+import Backend.Algorithm.Reader.Mode;
+import Backend.Helper.AnalysisExecutor;
+import fr.delthas.javamp3.Sound;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Decodes MPEG-1 Layer III files on several threads at once.
+ * Scans the frame headers, splits the file into segments on frame boundaries, decodes each segment with its own
+ * JavaMP3 decoder, and writes each segment's samples straight into its place in the final sample arrays.
+ * How to use: Call decode with the file's bytes, or stream to read the segments in order as they finish. Both return
+ * null if the file can't be split, so decode it normally.
+ *
+ * Layer III frames can start their audio data up to 511 bytes back, inside earlier frames (the bit reservoir).
+ * Each segment therefore starts decoding a few frames early. Frames whose reservoir data isn't available get their
+ * side info zeroed so they decode as silence instead of crashing the decoder, the frame right before the segment
+ * is decoded properly to fill the decoder's overlap buffers, and the samples of all these warm-up frames are
+ * thrown away. The result is identical to decoding the whole file on one thread.
+ */
+class ParallelMp3Decoder {
+  private static final int[] BITRATES = {0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320, 0};
+  private static final int[] SAMPLE_RATES = {44100, 48000, 32000, 0};
+  private static final int SAMPLES_PER_FRAME = 1152;
+  // Shortest segment worth giving its own thread, about 13 seconds.
+  private static final int MIN_SEGMENT_FRAMES = 500;
+  // Frames decoded before a segment starts, on top of the ones needed for the bit reservoir.
+  private static final int EXTRA_WARM_UP_FRAMES = 1;
+
+  private final byte[] file;
+  // Byte position, main_data_begin and side info offset of each frame.
+  private final int[] framePositions, mainDataBegin, sideInfoOffset;
+  private final int frameCount, sideInfoSize, sampleRate;
+  private final boolean stereo;
+
+  private ParallelMp3Decoder(byte[] file, int[] framePositions, int[] mainDataBegin, int[] sideInfoOffset,
+      int frameCount, int sampleRate, boolean stereo) {
+    this.file = file;
+    this.framePositions = framePositions;
+    this.mainDataBegin = mainDataBegin;
+    this.sideInfoOffset = sideInfoOffset;
+    this.frameCount = frameCount;
+    this.sampleRate = sampleRate;
+    this.stereo = stereo;
+    this.sideInfoSize = stereo ? 32 : 17;
+  }
+
+  // Returns {left, right} samples, with right null for mono. Returns null if the file needs to be decoded
+  // on one thread instead: not MPEG-1 Layer III, too short to split, or frames the scanner didn't expect.
+  static short[][] decode(byte[] file, int threads) throws IOException {
+    ParallelMp3Decoder decoder = scan(file);
+    if (decoder == null)
+      return null;
+
+    int segments = decoder.segments(threads);
+    if (segments < 2)
+      return null;
+    return decoder.decodeSegments(segments);
+  }
+
+  // Streams the file's samples. Every segment is handed to one of the shared executor's lanes at once, and read
+  // returns each one's samples as soon as it and the ones before it are done, so decoding still overlaps with
+  // whatever reads the stream. Returns null in the same cases as decode, except for frames the scanner didn't
+  // expect, which are only found while streaming and make the stream carry on with one decoder instead.
+  static PcmSource stream(byte[] file, int threads) {
+    ParallelMp3Decoder decoder = scan(file);
+    if (decoder == null)
+      return null;
+
+    int segments = decoder.segments(threads);
+    if (segments < 2)
+      return null;
+    return decoder.new SegmentStream(segments);
+  }
+
+  // Two segments per thread, so a thread that finishes early can take another one.
+  private int segments(int threads) {
+    return Math.min(threads * 2, frameCount / MIN_SEGMENT_FRAMES);
+  }
+
+  //region Frame scanning
+  private static ParallelMp3Decoder scan(byte[] file) {
+    int position = skipId3Tag(file);
+    int capacity = 1024;
+    int[] positions = new int[capacity], mainData = new int[capacity], sideInfo = new int[capacity];
+    int count = 0;
+    int sampleRate = -1, mode = -1;
+
+    while (position + 4 <= file.length) {
+      int frameLength = frameLength(file, position);
+      // Before the first frame, look for a header. After it, frames have to follow each other.
+      if (frameLength <= 0 || (count == 0 && !isFrame(file, position + frameLength))) {
+        if (count > 0)
+          break;
+        position++;
+        continue;
+      }
+
+      int frameSampleRate = (file[position + 2] >> 2) & 0x3;
+      int frameMode = (file[position + 3] >> 6) & 0x3;
+      if (count == 0) {
+        sampleRate = frameSampleRate;
+        mode = frameMode;
+      } else if (frameSampleRate != sampleRate || (frameMode == 3) != (mode == 3)) {
+        return null; // format changes part way through, let JavaMP3 deal with it
+      }
+
+      boolean crc = (file[position + 1] & 0x1) == 0;
+      int sideInfoPosition = position + 4 + (crc ? 2 : 0);
+      if (sideInfoPosition + 2 > file.length)
+        break;
+
+      if (count == capacity) {
+        capacity *= 2;
+        positions = Arrays.copyOf(positions, capacity);
+        mainData = Arrays.copyOf(mainData, capacity);
+        sideInfo = Arrays.copyOf(sideInfo, capacity);
+      }
+      positions[count] = position;
+      sideInfo[count] = sideInfoPosition;
+      mainData[count] = ((file[sideInfoPosition] & 0xFF) << 1) | ((file[sideInfoPosition + 1] & 0xFF) >> 7);
+      count++;
+      position += frameLength;
+    }
+
+    if (count == 0)
+      return null;
+    return new ParallelMp3Decoder(file, positions, mainData, sideInfo, count, SAMPLE_RATES[sampleRate], mode != 3);
+  }
+
+  private static int skipId3Tag(byte[] file) {
+    if (file.length < 10 || file[0] != 'I' || file[1] != 'D' || file[2] != '3')
+      return 0;
+    int size = ((file[6] & 0x7F) << 21) | ((file[7] & 0x7F) << 14) | ((file[8] & 0x7F) << 7) | (file[9] & 0x7F);
+    boolean footer = (file[5] & 0x10) != 0;
+    return 10 + size + (footer ? 10 : 0);
+  }
+
+  private static boolean isFrame(byte[] file, int position) {
+    return position + 4 > file.length || frameLength(file, position) > 0;
+  }
+
+  // Returns the length in bytes of the MPEG-1 Layer III frame at position, or -1 if there isn't one.
+  private static int frameLength(byte[] file, int position) {
+    if (position + 4 > file.length)
+      return -1;
+    // 11 sync bits, MPEG-1, Layer III
+    if ((file[position] & 0xFF) != 0xFF || (file[position + 1] & 0xFE) != 0xFA)
+      return -1;
+    int bitrate = BITRATES[(file[position + 2] >> 4) & 0xF] * 1000;
+    int sampleRate = SAMPLE_RATES[(file[position + 2] >> 2) & 0x3];
+    int padding = (file[position + 2] >> 1) & 0x1;
+    if (bitrate == 0 || sampleRate == 0)
+      return -1;
+    return (144 * bitrate / sampleRate) + padding;
+  }
+  //endregion
+
+  //region Segment decoding
+  private short[][] decodeSegments(int segments) throws IOException {
+    int length = frameCount * SAMPLES_PER_FRAME;
+    short[] left = new short[length];
+    short[] right = stereo ? new short[length] : null;
+
+    List<SegmentTask> tasks = new ArrayList<>(segments);
+    for (int i = 0; i < segments; i++) {
+      int firstFrame = (int) ((long) frameCount * i / segments);
+      int endFrame = (int) ((long) frameCount * (i + 1) / segments);
+      tasks.add(new SegmentTask(firstFrame, endFrame, i == segments - 1, left, right, 0));
+    }
+
+    try {
+      AnalysisExecutor.getShared().invoke(new RecursiveAction() {
+        @Override
+        protected void compute() {
+          invokeAll(tasks);
+        }
+      });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+
+    for (SegmentTask task : tasks)
+      if (!task.matched)
+        return null;
+    return new short[][]{left, right};
+  }
+
+  // Decodes frames [firstFrame, endFrame) into left and right, with the file's sample number base at index 0.
+  private class SegmentTask extends RecursiveAction {
+    private final int firstFrame, endFrame, base;
+    private final boolean last;
+    private final short[] left, right;
+    // False if the decoder gave a different number of samples than the scanner expected.
+    private boolean matched;
+
+    private SegmentTask(int firstFrame, int endFrame, boolean last, short[] left, short[] right, int base) {
+      this.firstFrame = firstFrame;
+      this.endFrame = endFrame;
+      this.last = last;
+      this.left = left;
+      this.right = right;
+      this.base = base;
+    }
+
+    @Override
+    protected void compute() {
+      try {
+        matched = decodeSegment();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      }
+    }
+
+    private boolean decodeSegment() throws IOException {
+      int warmUpFrame = warmUpStart(firstFrame);
+      // The first segment starts at the start of the file, and the last one runs to the end of it,
+      // so JavaMP3 sees the same tags and trailing bytes as when decoding the whole file.
+      int start = (firstFrame == 0) ? 0 : framePositions[warmUpFrame];
+      int end = last ? file.length : framePositions[endFrame];
+
+      InputStream stream;
+      if (warmUpFrame < firstFrame) {
+        byte[] warmUp = Arrays.copyOfRange(file, start, framePositions[firstFrame]);
+        silenceFramesWithoutReservoir(warmUp, warmUpFrame, start);
+        stream = new SequenceInputStream(new ByteArrayInputStream(warmUp),
+            new ByteArrayInputStream(file, framePositions[firstFrame], end - framePositions[firstFrame]));
+      } else {
+        stream = new ByteArrayInputStream(file, start, end - start);
+      }
+
+      int skip = (firstFrame - warmUpFrame) * SAMPLES_PER_FRAME;
+      int offset = firstFrame * SAMPLES_PER_FRAME;
+      int expectedEnd = endFrame * SAMPLES_PER_FRAME;
+      short[] blockLeft = new short[SAMPLES_PER_FRAME], blockRight = new short[SAMPLES_PER_FRAME];
+
+      try (PcmSource source = new Reader.Mp3Source(new Sound(stream))) {
+        int read;
+        while ((read = source.read(blockLeft, blockRight, 0, SAMPLES_PER_FRAME)) != -1) {
+          int from = Math.min(skip, read);
+          skip -= from;
+          int count = read - from;
+          if (offset + count > expectedEnd)
+            return false;
+          System.arraycopy(blockLeft, from, left, offset - base, count);
+          if (stereo)
+            System.arraycopy(blockRight, from, right, offset - base, count);
+          offset += count;
+        }
+      }
+
+      return offset == expectedEnd;
+    }
+  }
+
+  // Reads the segments in order, each decoded into its own arrays that are dropped once they have been read, so
+  // only the segments decoded ahead of the reader are held at once.
+  private class SegmentStream implements PcmSource {
+    private final List<SegmentTask> tasks;
+    // Segment being read, the next sample in it, and the samples read so far.
+    private int segment, position;
+    private long samplesRead;
+    // Takes over if a segment didn't decode to the samples the scanner expected.
+    private PcmSource fallback;
+
+    private SegmentStream(int segments) {
+      tasks = new ArrayList<>(segments);
+      for (int i = 0; i < segments; i++) {
+        int firstFrame = (int) ((long) frameCount * i / segments);
+        int endFrame = (int) ((long) frameCount * (i + 1) / segments);
+        int length = (endFrame - firstFrame) * SAMPLES_PER_FRAME;
+        tasks.add(new SegmentTask(firstFrame, endFrame, i == segments - 1, new short[length],
+            stereo ? new short[length] : null, firstFrame * SAMPLES_PER_FRAME));
+      }
+      ForkJoinPool lane = AnalysisExecutor.getShared().lane();
+      for (SegmentTask task : tasks)
+        lane.execute(task);
+    }
+
+    @Override
+    public Mode getMode() {
+      return stereo ? Mode.STEREO : Mode.MONO;
+    }
+
+    @Override
+    public int getSampleRate() {
+      return sampleRate;
+    }
+
+    @Override
+    public int read(short[] left, short[] right, int offset, int length) throws IOException {
+      if (fallback != null)
+        return fallback.read(left, right, offset, length);
+      while (segment < tasks.size()) {
+        SegmentTask task = tasks.get(segment);
+        try {
+          task.join();
+        } catch (UncheckedIOException e) {
+          throw e.getCause();
+        }
+        if (!task.matched) {
+          startFallback();
+          return fallback.read(left, right, offset, length);
+        }
+
+        int count = Math.min(length, task.left.length - position);
+        if (count > 0) {
+          System.arraycopy(task.left, position, left, offset, count);
+          if (stereo && right != null)
+            System.arraycopy(task.right, position, right, offset, count);
+          position += count;
+          samplesRead += count;
+          return count;
+        }
+        if (length == 0)
+          return 0;
+        tasks.set(segment, null);
+        segment++;
+        position = 0;
+      }
+      return (length == 0) ? 0 : -1;
+    }
+
+    @Override
+    public void close() throws IOException {
+      for (int i = segment; i < tasks.size(); i++)
+        if (tasks.get(i) != null)
+          tasks.get(i).cancel(false);
+      if (fallback != null)
+        fallback.close();
+    }
+
+    // Decodes the whole file on one thread from the start, skipping the samples already read.
+    private void startFallback() throws IOException {
+      for (int i = segment; i < tasks.size(); i++)
+        tasks.get(i).cancel(false);
+      fallback = new Reader.Mp3Source(new Sound(new ByteArrayInputStream(file)));
+      short[] skipLeft = new short[SAMPLES_PER_FRAME], skipRight = new short[SAMPLES_PER_FRAME];
+      for (long skip = samplesRead; skip > 0; ) {
+        int read = fallback.read(skipLeft, skipRight, 0, (int) Math.min(skip, SAMPLES_PER_FRAME));
+        if (read == -1)
+          break;
+        skip -= read;
+      }
+    }
+  }
+
+  // First frame to decode so the frame before firstFrame has all of its bit reservoir data.
+  private int warmUpStart(int firstFrame) {
+    if (firstFrame == 0)
+      return 0;
+    int exactFrame = firstFrame - 1;
+    int frame = exactFrame;
+    int available = 0;
+    while (frame > 0 && available < mainDataBegin[exactFrame]) {
+      frame--;
+      available += mainDataSize(frame);
+    }
+    return Math.max(0, frame - EXTRA_WARM_UP_FRAMES);
+  }
+
+  // Zeroes the side info of warm-up frames that point back to data before the segment.
+  // All-zero side info is a frame of silence that still adds its bytes to the reservoir.
+  private void silenceFramesWithoutReservoir(byte[] warmUp, int warmUpFrame, int start) {
+    int available = 0;
+    for (int frame = warmUpFrame; framePositions[frame] - start < warmUp.length; frame++) {
+      if (mainDataBegin[frame] > available)
+        Arrays.fill(warmUp, sideInfoOffset[frame] - start, sideInfoOffset[frame] - start + sideInfoSize, (byte) 0);
+      available += mainDataSize(frame);
+    }
+  }
+
+  // Bytes of audio data after the header and side info.
+  private int mainDataSize(int frame) {
+    int frameEnd = (frame + 1 < frameCount) ? framePositions[frame + 1] : file.length;
+    return frameEnd - sideInfoOffset[frame] - sideInfoSize;
+  }
+  //endregion
+}
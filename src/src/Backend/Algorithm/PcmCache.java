@@ -0,0 +1,204 @@
+package Backend.Algorithm;
+
+import Backend.Algorithm.Reader.Mode;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * On-disk cache of decoded audio, so the same .mp3 doesn't have to be decoded again every time it is analyzed.
+ * Entries are named after a SHA-256 hash of the source file's contents and stored as plain 16-bit PCM .wav files,
+ * so Reader maps them with WavFile just like any other .wav file.
+ * When the cache gets bigger than its size limit, the least recently used entries are deleted.
+ * How to use: Pass a PcmCache to Reader.setPcmCache. Reader checks it before decoding and fills it after.
+ */
+public class PcmCache {
+  private static final String EXTENSION = ".wav";
+  // Change this if decoding ever gives different samples, so old entries stop matching.
+  private static final String KEY_VERSION = "1";
+  private static final int HEADER_SIZE = 44;
+  private static final int BUFFER_SIZE = 65536;
+
+  private final Path directory;
+  private final long maxBytes;
+
+  public PcmCache(Path directory, long maxBytes) throws IOException {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+    Files.createDirectories(directory);
+  }
+
+  // Hash of the file's contents, so renamed or moved files still hit the cache and edited files don't.
+  public String key(String filepath) throws IOException {
+    MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("PcmCache: SHA-256 is not available - " + e.getMessage());
+    }
+    digest.update(KEY_VERSION.getBytes());
+
+    byte[] buffer = new byte[BUFFER_SIZE];
+    try (InputStream stream = Files.newInputStream(Path.of(filepath))) {
+      int read;
+      while ((read = stream.read(buffer)) != -1)
+        digest.update(buffer, 0, read);
+    }
+
+    StringBuilder hex = new StringBuilder();
+    for (byte b : digest.digest())
+      hex.append(String.format("%02x", b));
+    return hex.toString();
+  }
+
+  // Returns the path of the cached .wav, or null on a miss. A hit counts as a use for eviction.
+  public Path lookup(String key) {
+    Path path = directory.resolve(key + EXTENSION);
+    if (!Files.isRegularFile(path))
+      return null;
+    try {
+      Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+    } catch (IOException e) {
+      // Still usable, it just might get evicted sooner.
+    }
+    return path;
+  }
+
+  // Writes a whole decoded file to the cache.
+  public void put(String key, Reader reader) throws IOException {
+    short[] left = reader.getChannel(Reader.Channel.LEFT);
+    Entry entry = newEntry(key, reader.getMode(), reader.getSampleRate());
+    try {
+      entry.write(left, reader.getChannel(Reader.Channel.RIGHT), 0, left.length);
+      entry.commit();
+    } catch (IOException e) {
+      entry.abort();
+      throw e;
+    }
+  }
+
+  // Starts an entry that is written block by block while a file is being decoded.
+  public Entry newEntry(String key, Mode mode, int sampleRate) throws IOException {
+    return new Entry(key, mode, sampleRate);
+  }
+
+  // Deletes least recently used entries until the cache fits in its size limit.
+  // Sources reading an entry keep its file open, so deleting it doesn't take the samples away from them. Where open
+  // files can't be deleted, the entry is skipped and evicted by a later call instead.
+  public synchronized void evict() throws IOException {
+    List<Path> entries = new ArrayList<>();
+    long totalBytes = 0;
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*" + EXTENSION)) {
+      for (Path path : stream) {
+        entries.add(path);
+        totalBytes += Files.size(path);
+      }
+    }
+    if (totalBytes <= maxBytes)
+      return;
+
+    entries.sort(Comparator.comparing(PcmCache::lastUsed));
+    for (Path path : entries) {
+      if (totalBytes <= maxBytes)
+        break;
+      try {
+        long size = Files.size(path);
+        if (Files.deleteIfExists(path))
+          totalBytes -= size;
+      } catch (IOException e) {
+        // In use, or already evicted by another process.
+      }
+    }
+  }
+
+  private static FileTime lastUsed(Path path) {
+    try {
+      return Files.getLastModifiedTime(path);
+    } catch (IOException e) {
+      return FileTime.fromMillis(0);
+    }
+  }
+
+  /**
+   * A cache entry being written. Samples go to a temporary file that is renamed into place by commit,
+   * so other readers never see half-written entries.
+   */
+  public class Entry {
+    private final Path path, tempPath;
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final Mode mode;
+    private final int sampleRate;
+    private long frames;
+
+    private Entry(String key, Mode mode, int sampleRate) throws IOException {
+      this.path = directory.resolve(key + EXTENSION);
+      this.tempPath = Files.createTempFile(directory, key, ".tmp");
+      this.channel = FileChannel.open(tempPath, StandardOpenOption.WRITE);
+      this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      this.mode = mode;
+      this.sampleRate = sampleRate;
+      channel.position(HEADER_SIZE);
+    }
+
+    // Writes frames [offset, offset + length) of left/right. right is ignored for mono audio.
+    public void write(short[] left, short[] right, int offset, int length) throws IOException {
+      for (int i = offset; i < offset + length; i++) {
+        if (buffer.remaining() < 4)
+          flush();
+        buffer.putShort(left[i]);
+        if (mode == Mode.STEREO)
+          buffer.putShort(right[i]);
+      }
+      frames += length;
+    }
+
+    // Fills in the header, moves the entry into place and evicts old entries if the cache is too big.
+    public void commit() throws IOException {
+      flush();
+      int channels = (mode == Mode.STEREO) ? 2 : 1;
+      long dataSize = frames * channels * 2;
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      header.put("RIFF".getBytes()).putInt((int) Math.min(36 + dataSize, 0xFFFFFFFFL)).put("WAVE".getBytes());
+      header.put("fmt ".getBytes()).putInt(16).putShort((short) 1).putShort((short) channels)
+          .putInt(sampleRate).putInt(sampleRate * channels * 2).putShort((short) (channels * 2)).putShort((short) 16);
+      header.put("data".getBytes()).putInt((int) Math.min(dataSize, 0xFFFFFFFFL));
+      header.flip();
+      channel.write(header, 0);
+      channel.close();
+
+      Files.move(tempPath, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      evict();
+    }
+
+    // Throws away everything written so far.
+    public void abort() {
+      try {
+        channel.close();
+        Files.deleteIfExists(tempPath);
+      } catch (IOException e) {
+        // Only a leftover temporary file.
+      }
+    }
+
+    private void flush() throws IOException {
+      buffer.flip();
+      while (buffer.hasRemaining())
+        channel.write(buffer);
+      buffer.clear();
+    }
+  }
+}
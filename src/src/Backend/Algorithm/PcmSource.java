@@ -0,0 +1,28 @@
+package Backend.Algorithm;
+
+import Backend.Algorithm.Reader.Mode;
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A pull-based stream of 16-bit PCM audio, read in blocks of sample frames.
+ * How to use: Get one from Reader.openStream, then call read until it returns -1.
+ * Lets Transform start working on the start of a song while the rest is still being decoded.
+ */
+public interface PcmSource extends Closeable {
+
+  Mode getMode();
+
+  int getSampleRate();
+
+  /**
+   * Reads the next block of sample frames.
+   *
+   * @param left Receives left channel samples (or the only channel of mono audio).
+   * @param right Receives right channel samples. Ignored for mono audio, can be null.
+   * @param offset Index in left/right to write the first sample to.
+   * @param length Most frames to read.
+   * @return Number of frames read, which is only 0 if length is 0, or -1 at the end of the stream.
+   */
+  int read(short[] left, short[] right, int offset, int length) throws IOException;
+}
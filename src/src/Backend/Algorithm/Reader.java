@@ -2,14 +2,19 @@ package Backend.Algorithm;
 
 // .mp3 decode
 
+import Backend.Helper.AnalysisExecutor;
 import fr.delthas.javamp3.Sound;
 import java.io.File;
 import javax.sound.sampled.*;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 
 /**
  * @author Ethan Carnahan
@@ -24,86 +29,257 @@ public class Reader {
   // Left or right ear
   public enum Channel {LEFT, RIGHT}
 
+  // How .mp3 files are decoded. PARALLEL splits long files into segments that are decoded on the cores one job may use,
+  // and gives the same samples as SEQUENTIAL.
+  public enum DecodeMode {SEQUENTIAL, PARALLEL}
+
   private static final int BUFFER_SIZE = 32768; // 32 kB
+  private static final int BLOCK_SIZE = 8192; // sample frames
 
   // Audio channels (mono uses only left)
   private final short[] left, right;
   private final Mode mode;
   private final int sampleRate;
+  // Most memory held at once while decoding, in bytes.
+  private final long decodePeakBytes;
+
+  // Decoded .mp3 files are kept here when set, null turns caching off.
+  private static volatile PcmCache pcmCache;
 
+  // PARALLEL reads the whole .mp3 file into memory first, so it has to be asked for.
   public static Reader readFile(String filepath) throws IOException {
-    // Get file extension
-    int dotIndex = filepath.lastIndexOf('.');
-    if (dotIndex == -1)
-      throw new IllegalArgumentException("Reader: File must end in .wav or .mp3.");
-    String extension = filepath.substring(dotIndex);
+    return readFile(filepath, DecodeMode.SEQUENTIAL);
+  }
+
+  public static Reader readFile(String filepath, DecodeMode decodeMode) throws IOException {
+    String extension = getExtension(filepath);
+
+    if (extension.equals(".mp3")) {
+      PcmCache cache = pcmCache;
+      String key = null;
+      if (cache != null) {
+        key = cache.key(filepath);
+        Reader cached = readCached(cache, key, filepath);
+        if (cached != null)
+          return cached;
+      }
 
-    if (extension.equals(".mp3"))
-      return readMP3File(filepath);
+      return decodeMP3File(filepath, decodeMode, cache, key);
+    }
     if (extension.equals(".wav"))
       return readWavFile(filepath);
 
     throw new IllegalArgumentException("Reader: File must end in .wav or .mp3.");
   }
 
-  private Reader(short[] left, short[] right, Mode mode, int sampleRate) {
+  // Decodes a file that isn't in the cache, and adds it to the cache when there is one.
+  private static Reader decodeMP3File(String filepath, DecodeMode decodeMode, PcmCache cache, String key)
+      throws IOException {
+    Reader reader = (decodeMode == DecodeMode.PARALLEL) ? readMP3FileParallel(filepath) : readMP3File(filepath);
+    if (cache != null) {
+      try {
+        cache.put(key, reader);
+      } catch (IOException e) {
+        System.out.println("Reader: Failed to cache decoded file - " + e.getMessage());
+      }
+    }
+    return reader;
+  }
+
+  // Sets the cache that decoded .mp3 files are read from and written to, or null to stop caching.
+  public static void setPcmCache(PcmCache cache) {
+    pcmCache = cache;
+  }
+
+  // Opens the file as a stream of sample blocks instead of reading it all at once.
+  // .mp3 files are decoded as they are read. When a job may use more than one core, their segments are decoded in
+  // parallel and handed out in order as each one finishes.
+  public static PcmSource openStream(String filepath) throws IOException {
+    String extension = getExtension(filepath);
+
+    if (extension.equals(".mp3")) {
+      PcmCache cache = pcmCache;
+      String key = null;
+      if (cache != null) {
+        key = cache.key(filepath);
+        Path cached = cache.lookup(key);
+        if (cached != null) {
+          WavFile wav = openWav(cached.toString());
+          if (wav != null) {
+            System.out.println("Reader: Streaming cached file " + filepath);
+            return new WavSource(wav);
+          }
+        }
+      }
+
+      System.out.println("Reader: Streaming file " + filepath);
+      PcmSource source = openMp3Stream(filepath);
+      if (cache == null)
+        return source;
+      try {
+        return new CachingSource(source, cache.newEntry(key, source.getMode(), source.getSampleRate()));
+      } catch (IOException | RuntimeException e) {
+        source.close();
+        throw e;
+      }
+    }
+    if (extension.equals(".wav")) {
+      WavFile wav = openWav(filepath);
+      if (wav != null)
+        return new WavSource(wav);
+      return new JavaSoundSource(openJavaSound(filepath));
+    }
+
+    throw new IllegalArgumentException("Reader: File must end in .wav or .mp3.");
+  }
+
+  // Streams audio that has already been read.
+  public PcmSource stream() {
+    return new ArraySource(this);
+  }
+
+  // The same audio at Resampler's canonical rate, or this Reader if it already has that rate or resampling is off.
+  public Reader canonical() throws IOException {
+    PcmSource source = Resampler.canonical(stream());
+    if (source instanceof Resampler)
+      return readSource(source, (int) Math.ceil(getDuration() * source.getSampleRate()));
+    return this;
+  }
+
+  private Reader(short[] left, short[] right, Mode mode, int sampleRate, long decodePeakBytes) {
     this.left = left;
     this.right = right;
     this.mode = mode;
     this.sampleRate = sampleRate;
+    this.decodePeakBytes = decodePeakBytes;
+  }
+
+  private static String getExtension(String filepath) {
+    int dotIndex = filepath.lastIndexOf('.');
+    if (dotIndex == -1)
+      throw new IllegalArgumentException("Reader: File must end in .wav or .mp3.");
+    return filepath.substring(dotIndex);
+  }
+
+  // Returns null if the file isn't cached, or its entry was evicted before it could be read.
+  private static Reader readCached(PcmCache cache, String key, String mp3Filepath) {
+    Path cached = cache.lookup(key);
+    if (cached == null)
+      return null;
+    WavFile wav = openWav(cached.toString());
+    if (wav == null)
+      return null;
+    System.out.println("Reader: Reading cached file " + mp3Filepath);
+    try (wav) {
+      return readWav(wav);
+    } catch (IOException e) {
+      return null;
+    }
+  }
+
+  // Uses the cores one job may use if the file can be split, and one decoder otherwise.
+  private static PcmSource openMp3Stream(String mp3Filepath) throws IOException {
+    int threads = AnalysisExecutor.getShared().getMaxCoresPerJob();
+    if (threads <= 1)
+      return new Mp3Source(mp3Filepath);
+
+    byte[] file = Files.readAllBytes(Paths.get(mp3Filepath));
+    PcmSource source = ParallelMp3Decoder.stream(file, threads);
+    if (source != null)
+      return source;
+    return new Mp3Source(new Sound(new ByteArrayInputStream(file)));
   }
 
   private static Reader readMP3File(String mp3Filepath) throws IOException {
     // Decode mp3 file.
     System.out.println("Reader: Reading file " + mp3Filepath);
-    Sound sound;
-    List<Byte> soundBytes = new ArrayList<>(BUFFER_SIZE);
+    // Usual bitrates give 2-3 samples per file byte, so start with one sample per byte.
+    int expectedSamples = (int) Math.min(new File(mp3Filepath).length(), Integer.MAX_VALUE / 2);
+    try (PcmSource source = new Mp3Source(mp3Filepath)) {
+      return readSource(source, expectedSamples);
+    } catch (IOException e) {
+      throw new IOException("Reader: Failed to read MP3 file - " + e.getMessage());
+    }
+  }
+
+  // Decodes on one of the shared executor's lanes, using no more threads than one job is allowed.
+  // Falls back to decoding on one thread if the file can't be split into segments.
+  private static Reader readMP3FileParallel(String mp3Filepath) throws IOException {
+    System.out.println("Reader: Reading file " + mp3Filepath);
+    byte[] file = Files.readAllBytes(Paths.get(mp3Filepath));
+    int threads = AnalysisExecutor.getShared().getMaxCoresPerJob();
     try {
-      sound = new Sound(new FileInputStream(mp3Filepath));
-
-      // JavaMP3's decodeFullyInto() method doesn't work and Java primitive/object typing is garbage.
-      byte[] buffer = new byte[BUFFER_SIZE];
-      while (true) {
-        int readLength = sound.read(buffer);
-        if (readLength <= 0) {
-          break;
-        }
-        for (int i = 0; i < readLength; i++) {
-          soundBytes.add(buffer[i]);
+      short[][] channels = ParallelMp3Decoder.decode(file, threads);
+      if (channels != null) {
+        Mode mode = (channels[1] != null) ? Mode.STEREO : Mode.MONO;
+        int sampleRate;
+        try (Sound sound = new Sound(new ByteArrayInputStream(file))) {
+          sampleRate = sound.getSamplingFrequency();
         }
+        long channelBytes = (long) channels[0].length * Short.BYTES * (mode == Mode.STEREO ? 2 : 1);
+        return new Reader(channels[0], channels[1], mode, sampleRate, file.length + channelBytes);
       }
 
-      sound.close();
+      // Usual bitrates give 2-3 samples per file byte, so start with one sample per byte.
+      try (PcmSource source = new Mp3Source(new Sound(new ByteArrayInputStream(file)))) {
+        Reader reader = readSource(source, file.length);
+        return new Reader(reader.left, reader.right, reader.mode, reader.sampleRate,
+            file.length + reader.decodePeakBytes);
+      }
     } catch (IOException e) {
       throw new IOException("Reader: Failed to read MP3 file - " + e.getMessage());
     }
+  }
 
-    // Get mode and sample rate.
-    Mode mode = sound.isStereo() ? Mode.STEREO : Mode.MONO;
-    int sampleRate = sound.getSamplingFrequency();
-
-    // Convert bytes to shorts (samples are 16 bits).
-    short[] left, right;
-    if (sound.isStereo()) {
-      left = new short[soundBytes.size() / 4];
-      right = new short[soundBytes.size() / 4];
-      for (int i = 0; i < soundBytes.size() - 3; i += 4) {
-        left[i / 4] = (short) ((soundBytes.get(i) & 0xFF) | (soundBytes.get(i + 1) << 8));
-        right[i / 4] = (short) ((soundBytes.get(i + 2) & 0xFF) | (soundBytes.get(i + 3) << 8));
-      }
-    } else {
-      left = new short[soundBytes.size() / 2];
-      right = null;
-      for (int i = 0; i < soundBytes.size() - 1; i += 2) {
-        left[i / 2] = (short) ((soundBytes.get(i) & 0xFF) | (soundBytes.get(i + 1) << 8));
+  // 16-bit PCM is mapped and de-interleaved in one pass. Anything else goes through javax.sound.
+  private static Reader readWavFile(String wavFilepath) throws IOException {
+    WavFile wav = openWav(wavFilepath);
+    if (wav == null) {
+      AudioInputStream inputStream = openJavaSound(wavFilepath);
+      long frameLength = inputStream.getFrameLength();
+      int expectedSamples = (frameLength > 0 && frameLength < Integer.MAX_VALUE) ? (int) frameLength : 0;
+      try (PcmSource source = new JavaSoundSource(inputStream)) {
+        return readSource(source, expectedSamples);
       }
     }
+    try (wav) {
+      return readWav(wav);
+    }
+  }
+
+  private static Reader readWav(WavFile wav) throws IOException {
+    Mode mode = wav.getChannels() == 2 ? Mode.STEREO : Mode.MONO;
+    int length = (int) wav.getFrames();
+    short[] left = new short[length];
+    short[] right = (mode == Mode.STEREO) ? new short[length] : null;
+    wav.read(0, length, left, right, 0);
+
+    long channelBytes = (long) length * Short.BYTES * (mode == Mode.STEREO ? 2 : 1);
+    return new Reader(left, right, mode, wav.getSampleRate(), channelBytes);
+  }
+
+  // Returns null if the file has to go through javax.sound instead. The caller closes the file it returns.
+  private static WavFile openWav(String wavFilepath) {
+    WavFile wav;
+    try {
+      wav = WavFile.open(wavFilepath);
+    } catch (IOException e) {
+      return null;
+    }
+    if (wav.isSupported() && wav.getFrames() <= Integer.MAX_VALUE)
+      return wav;
 
-    return new Reader(left, right, mode, sampleRate);
+    try (wav) {
+      if (wav.isSupported())
+        throw new IllegalArgumentException("Reader: File is too long, has " + wav.getFrames() + " samples.");
+    } catch (IOException e) {
+      // Only closing can throw here, and the file isn't used either way.
+    }
+    return null;
   }
 
   // Based on https://docs.oracle.com/javase/tutorial/sound/converters.html
-  private static Reader readWavFile(String wavFilepath) throws IOException {
+  private static AudioInputStream openJavaSound(String wavFilepath) throws IOException {
     // file
     AudioInputStream inputStream;
     try {
@@ -117,84 +293,290 @@ public class Reader {
     int numChannels = inputStream.getFormat().getChannels();
     if (numChannels <= 0 || numChannels > 2)
       throw new IllegalArgumentException("Reader: Does not support " + numChannels + "-channel audio");
-    Mode mode = numChannels == 2 ? Mode.STEREO : Mode.MONO;
-    int sampleRate = (int)inputStream.getFormat().getSampleRate();
     int bitDepth = inputStream.getFormat().getSampleSizeInBits();
     if (bitDepth != 16)
       throw new IllegalArgumentException("Reader: Does not support " + bitDepth + "-bit audio");
 
-    // audio data
-    short[] left, right;
-    if (mode == Mode.STEREO) {
-      short[][] channels = readWavStereo(inputStream);
-      left = channels[0];
-      right = channels[1];
-    } else {
-      left = readWavMono(inputStream);
-      right = null;
-    }
-    inputStream.close();
+    return inputStream;
+  }
+
+  // Reads a whole stream into memory.
+  private static Reader readSource(PcmSource source, int expectedSamples) throws IOException {
+    boolean stereo = source.getMode() == Mode.STEREO;
+    SampleBuffer samples = new SampleBuffer(stereo, expectedSamples);
+    short[] left = new short[BLOCK_SIZE];
+    short[] right = stereo ? new short[BLOCK_SIZE] : null;
 
-    return new Reader(left, right, mode, sampleRate);
+    int read;
+    while ((read = source.read(left, right, 0, BLOCK_SIZE)) != -1)
+      samples.append(left, right, read);
+
+    long blockBytes = (long) BLOCK_SIZE * Short.BYTES * (stereo ? 2 : 1);
+    return new Reader(samples.getChannel(Channel.LEFT), samples.getChannel(Channel.RIGHT), source.getMode(),
+        source.getSampleRate(), samples.getPeakBytes() + blockBytes + BUFFER_SIZE);
   }
 
-  private static short[] readWavMono(AudioInputStream stream) throws IOException {
-    List<Byte> soundBytes = readBytes(stream);
+  public Mode getMode() {
+    return mode;
+  }
 
-    // Convert bytes to audio samples
-    short[] left = new short[soundBytes.size() / 2];
-    for (int i = 0; i < soundBytes.size() - 1; i += 2) {
-      left[i / 2] = (short) ((soundBytes.get(i) & 0xFF) | (soundBytes.get(i + 1) << 8));
-    }
+  public int getSampleRate() {
+    return sampleRate;
+  }
+
+  // Returns duration in seconds.
+  public double getDuration() {
+    return (double) left.length / (double) sampleRate;
+  }
+
+  // Peak bytes allocated while decoding, per second of decoded audio.
+  public double getDecodeBytesPerSecond() {
+    return decodePeakBytes / getDuration();
+  }
 
-    return left;
+  // returns null for right channel of mono audio file.
+  public short[] getChannel(Channel channel) {
+    return (channel == Channel.LEFT) ? left : right;
   }
 
-  private static short[][] readWavStereo(AudioInputStream stream) throws IOException {
-    List<Byte> soundBytes = readBytes(stream);
+  //region PcmSource implementations
+  // Sources that decode to little-endian bytes. Handles blocks that end in the middle of a sample frame.
+  private abstract static class ByteSource implements PcmSource {
+    private final Mode mode;
+    private final int sampleRate, frameSize;
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private int bufferStart, bufferEnd;
+    private boolean ended;
+
+    private ByteSource(Mode mode, int sampleRate) {
+      this.mode = mode;
+      this.sampleRate = sampleRate;
+      this.frameSize = (mode == Mode.STEREO) ? 4 : 2;
+    }
+
+    // Reads up to length bytes into bytes[offset], returns -1 at end of stream.
+    protected abstract int readBytes(byte[] bytes, int offset, int length) throws IOException;
+
+    @Override
+    public Mode getMode() {
+      return mode;
+    }
 
-    // Convert bytes to audio samples
-    short[] left = new short[soundBytes.size() / 4];
-    short[] right = new short[soundBytes.size() / 4];
-    for (int i = 0; i < soundBytes.size() - 3; i += 4) {
-      left[i / 4] = (short) ((soundBytes.get(i) & 0xFF) | (soundBytes.get(i + 1) << 8));
-      right[i / 4] = (short) ((soundBytes.get(i + 2) & 0xFF) | (soundBytes.get(i + 3) << 8));
+    @Override
+    public int getSampleRate() {
+      return sampleRate;
     }
 
-    return new short[][]{left, right};
+    @Override
+    public int read(short[] left, short[] right, int offset, int length) throws IOException {
+      // Refill until at least one whole frame is buffered.
+      while (!ended && bufferEnd - bufferStart < frameSize) {
+        System.arraycopy(buffer, bufferStart, buffer, 0, bufferEnd - bufferStart);
+        bufferEnd -= bufferStart;
+        bufferStart = 0;
+        int read = readBytes(buffer, bufferEnd, buffer.length - bufferEnd);
+        if (read < 0)
+          ended = true;
+        else
+          bufferEnd += read;
+      }
+
+      int frames = Math.min(length, (bufferEnd - bufferStart) / frameSize);
+      if (frames == 0)
+        return (length == 0) ? 0 : -1;
+
+      // Convert bytes to shorts (samples are 16 bits).
+      int i = bufferStart;
+      for (int j = offset; j < offset + frames; j++, i += frameSize) {
+        left[j] = (short) ((buffer[i] & 0xFF) | (buffer[i + 1] << 8));
+        if (mode == Mode.STEREO)
+          right[j] = (short) ((buffer[i + 2] & 0xFF) | (buffer[i + 3] << 8));
+      }
+      bufferStart = i;
+
+      return frames;
+    }
   }
 
-  public static List<Byte> readBytes(AudioInputStream stream) throws IOException {
-    List<Byte> soundBytes = new ArrayList<>(BUFFER_SIZE);
-    byte[] buffer = new byte[BUFFER_SIZE];
-    int bytesRead;
+  static class Mp3Source extends ByteSource {
+    private final Sound sound;
 
-    // Read bytes
-    while ((bytesRead = stream.read(buffer)) != -1) {
-      for (int i = 0; i < bytesRead; i++)
-        soundBytes.add(buffer[i]);
+    private Mp3Source(String mp3Filepath) throws IOException {
+      this(openSound(mp3Filepath));
     }
 
-    return soundBytes;
+    Mp3Source(Sound sound) {
+      super(sound.isStereo() ? Mode.STEREO : Mode.MONO, sound.getSamplingFrequency());
+      this.sound = sound;
+    }
+
+    // Closes the file again if the decoder can't start on it.
+    private static Sound openSound(String mp3Filepath) throws IOException {
+      InputStream stream = new BufferedInputStream(new FileInputStream(mp3Filepath), BUFFER_SIZE);
+      try {
+        return new Sound(stream);
+      } catch (IOException | RuntimeException e) {
+        stream.close();
+        throw e;
+      }
+    }
+
+    // JavaMP3's decodeFullyInto() method doesn't work, so decode one buffer at a time.
+    @Override
+    protected int readBytes(byte[] bytes, int offset, int length) throws IOException {
+      int read = sound.read(bytes, offset, length);
+      return (read <= 0) ? -1 : read;
+    }
+
+    @Override
+    public void close() throws IOException {
+      sound.close();
+    }
   }
 
-  public Mode getMode() {
-    return mode;
+  private static class JavaSoundSource extends ByteSource {
+    private final AudioInputStream stream;
+
+    private JavaSoundSource(AudioInputStream stream) {
+      super(stream.getFormat().getChannels() == 2 ? Mode.STEREO : Mode.MONO,
+          (int) stream.getFormat().getSampleRate());
+      this.stream = stream;
+    }
+
+    @Override
+    protected int readBytes(byte[] bytes, int offset, int length) throws IOException {
+      return stream.read(bytes, offset, length);
+    }
+
+    @Override
+    public void close() throws IOException {
+      stream.close();
+    }
   }
 
-  public int getSampleRate() {
-    return sampleRate;
+  // Reads blocks straight out of the memory-mapped file, which stays mapped until the source is closed.
+  private static class WavSource implements PcmSource {
+    private final WavFile wav;
+    private long position;
+
+    private WavSource(WavFile wav) {
+      this.wav = wav;
+    }
+
+    @Override
+    public Mode getMode() {
+      return wav.getChannels() == 2 ? Mode.STEREO : Mode.MONO;
+    }
+
+    @Override
+    public int getSampleRate() {
+      return wav.getSampleRate();
+    }
+
+    @Override
+    public int read(short[] left, short[] right, int offset, int length) throws IOException {
+      int frames = (int) Math.min(length, wav.getFrames() - position);
+      if (frames <= 0)
+        return (length == 0) ? 0 : -1;
+      wav.read(position, frames, left, right, offset);
+      position += frames;
+      return frames;
+    }
+
+    @Override
+    public void close() throws IOException {
+      wav.close();
+    }
   }
 
-  // Returns duration in seconds.
-  public double getDuration() {
-    return (double) left.length / (double) sampleRate;
+  // Writes each block to a cache entry as it is read, and commits the entry once the whole file has been read.
+  private static class CachingSource implements PcmSource {
+    private final PcmSource source;
+    private PcmCache.Entry entry;
+
+    private CachingSource(PcmSource source, PcmCache.Entry entry) {
+      this.source = source;
+      this.entry = entry;
+    }
+
+    @Override
+    public Mode getMode() {
+      return source.getMode();
+    }
+
+    @Override
+    public int getSampleRate() {
+      return source.getSampleRate();
+    }
+
+    @Override
+    public int read(short[] left, short[] right, int offset, int length) throws IOException {
+      int read = source.read(left, right, offset, length);
+      if (entry == null)
+        return read;
+
+      // A failing cache shouldn't fail the read, so just stop caching.
+      try {
+        if (read == -1) {
+          entry.commit();
+          entry = null;
+        } else {
+          entry.write(left, right, offset, read);
+        }
+      } catch (IOException e) {
+        System.out.println("Reader: Failed to cache decoded file - " + e.getMessage());
+        entry.abort();
+        entry = null;
+      }
+      return read;
+    }
+
+    // Closing before the end throws away the partial entry.
+    @Override
+    public void close() throws IOException {
+      if (entry != null) {
+        entry.abort();
+        entry = null;
+      }
+      source.close();
+    }
   }
 
-  // returns null for right channel of mono audio file.
-  public short[] getChannel(Channel channel) {
-    return (channel == Channel.LEFT) ? left : right;
+  private static class ArraySource implements PcmSource {
+    private final Reader reader;
+    private int position;
+
+    private ArraySource(Reader reader) {
+      this.reader = reader;
+    }
+
+    @Override
+    public Mode getMode() {
+      return reader.mode;
+    }
+
+    @Override
+    public int getSampleRate() {
+      return reader.sampleRate;
+    }
+
+    @Override
+    public int read(short[] left, short[] right, int offset, int length) {
+      int frames = Math.min(length, reader.left.length - position);
+      if (frames <= 0)
+        return (length == 0) ? 0 : -1;
+      System.arraycopy(reader.left, position, left, offset, frames);
+      if (reader.mode == Mode.STEREO)
+        System.arraycopy(reader.right, position, right, offset, frames);
+      position += frames;
+      return frames;
+    }
+
+    @Override
+    public void close() {
+    }
   }
+  //endregion
 
   // Prints out the values of the .mp3 or .wav file in args[0].
   public static void main(String[] args) {
@@ -205,6 +587,7 @@ public class Reader {
       System.out.println("mode = " + reader.getMode());
       System.out.println("sample rate = " + reader.getSampleRate());
       System.out.println("duration = " + reader.getDuration());
+      System.out.println("decode bytes per second = " + (long) reader.getDecodeBytesPerSecond());
 
       // left channel samples
       System.out.println("\nleft channel samples:");
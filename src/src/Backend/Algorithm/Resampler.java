@@ -0,0 +1,171 @@
+package Backend.Algorithm;
+
+import Backend.Algorithm.Reader.Mode;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Streaming polyphase resampler, so songs with different sample rates share Transform's kernels and high rate songs
+ * don't cost more to analyse. The rate changes by the ratio up / down in lowest terms, and each output sample is one
+ * dot product of a windowed sinc filter (one phase of up phases) with the input around it. The filter cuts off below
+ * the lower of the two Nyquist frequencies, so downsampling doesn't alias.
+ * How to use: Wrap a PcmSource with canonical (or a new Resampler) and read from it like any other source, or call
+ * Reader.canonical. The canonical rate is set by the analysis.sampleRate system property, 0 (the default) turns
+ * resampling off.
+ */
+public class Resampler implements PcmSource {
+  // Sample rate every analysed song is converted to, or 0 to keep each song's own rate.
+  private static final int CANONICAL_RATE = Integer.getInteger("analysis.sampleRate", 0);
+  // Zero crossings of the sinc on each side of the filter, at the lower of the two rates.
+  private static final int ZERO_CROSSINGS = 16;
+  // Cutoff as a fraction of the lower Nyquist frequency, leaving room for the filter's transition band.
+  private static final double ROLLOFF = 0.95;
+  private static final double KAISER_BETA = 8;
+  private static final int BLOCK_SIZE = 8192; // input sample frames read at once
+
+  private final PcmSource source;
+  private final int sampleRate, up, down, taps;
+  // taps coefficients for each phase, in the order of the input samples they multiply.
+  private final float[] filter;
+  // Input samples from bufferStart onward, the first taps / 2 start as silence before the song.
+  private final short[] left, right;
+  private long bufferStart;
+  private int filled;
+  // Next output sample, and the number of input samples once the source has ended.
+  private long position;
+  private long inputLength = -1;
+
+  /**
+   * @param source Audio to resample. Closed when this is closed.
+   * @param sampleRate Rate of the audio read from this.
+   */
+  public Resampler(PcmSource source, int sampleRate) {
+    if (sampleRate <= 0)
+      throw new IllegalArgumentException("Resampler: Sample rate must be positive, was " + sampleRate);
+    int divisor = gcd(sampleRate, source.getSampleRate());
+    this.source = source;
+    this.sampleRate = sampleRate;
+    up = sampleRate / divisor;
+    down = source.getSampleRate() / divisor;
+
+    double cutoff = ROLLOFF * Math.min(1, (double) up / down); // in cycles per input sample * 2
+    taps = 2 * (int) Math.ceil(ZERO_CROSSINGS / cutoff);
+    filter = new float[up * taps];
+    double halfWidth = taps / 2.0, besselBeta = bessel(KAISER_BETA);
+    for (int phase = 0; phase < up; phase++)
+      for (int k = 0; k < taps; k++) {
+        // Distance in input samples from the output sample to input sample k of its window.
+        double t = (taps / 2.0) - 1 - k + ((double) phase / up);
+        double ratio = t / halfWidth;
+        double window = (Math.abs(ratio) >= 1) ? 0 : bessel(KAISER_BETA * Math.sqrt(1 - ratio * ratio)) / besselBeta;
+        filter[(phase * taps) + k] = (float) (cutoff * sinc(cutoff * t) * window);
+      }
+
+    boolean stereo = source.getMode() == Mode.STEREO;
+    left = new short[BLOCK_SIZE + taps];
+    right = stereo ? new short[BLOCK_SIZE + taps] : null;
+    bufferStart = -(taps / 2);
+    filled = taps / 2;
+  }
+
+  // Resamples to the canonical rate, or returns source itself if resampling is off or it already has that rate.
+  public static PcmSource canonical(PcmSource source) {
+    if (CANONICAL_RATE == 0 || source.getSampleRate() == CANONICAL_RATE)
+      return source;
+    return new Resampler(source, CANONICAL_RATE);
+  }
+
+  // 0 when resampling is off.
+  public static int getCanonicalRate() {
+    return CANONICAL_RATE;
+  }
+
+  @Override
+  public Mode getMode() {
+    return source.getMode();
+  }
+
+  @Override
+  public int getSampleRate() {
+    return sampleRate;
+  }
+
+  // Output sample n is centered on input sample n * down / up, and there are ceil(input length * up / down) of them.
+  @Override
+  public int read(short[] left, short[] right, int offset, int length) throws IOException {
+    int frames = 0;
+    while (frames < length) {
+      long upsampled = position * down;
+      long center = upsampled / up;
+      if (inputLength >= 0 && center >= inputLength)
+        break;
+      long first = center - (taps / 2) + 1;
+      if (first + taps > bufferStart + filled) {
+        fill(first);
+        continue;
+      }
+
+      int start = (int) (first - bufferStart);
+      int coefficients = (int) (upsampled % up) * taps;
+      left[offset + frames] = dot(this.left, start, coefficients);
+      if (this.right != null)
+        right[offset + frames] = dot(this.right, start, coefficients);
+      frames++;
+      position++;
+    }
+    return (frames == 0 && length > 0) ? -1 : frames;
+  }
+
+  @Override
+  public void close() throws IOException {
+    source.close();
+  }
+
+  // Drops input before first and reads more after the buffered input. Once the source ends, the rest of the
+  // buffer is silence after the song.
+  private void fill(long first) throws IOException {
+    int drop = (int) (first - bufferStart);
+    System.arraycopy(left, drop, left, 0, filled - drop);
+    if (right != null)
+      System.arraycopy(right, drop, right, 0, filled - drop);
+    bufferStart = first;
+    filled -= drop;
+
+    int read = (inputLength >= 0) ? -1 : source.read(left, right, filled, left.length - filled);
+    if (read >= 0) {
+      filled += read;
+      return;
+    }
+    if (inputLength < 0)
+      inputLength = bufferStart + filled;
+    Arrays.fill(left, filled, left.length, (short) 0);
+    if (right != null)
+      Arrays.fill(right, filled, right.length, (short) 0);
+    filled = left.length;
+  }
+
+  private short dot(short[] samples, int start, int coefficients) {
+    float sum = 0;
+    for (int k = 0; k < taps; k++)
+      sum += samples[start + k] * filter[coefficients + k];
+    return (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, Math.round(sum)));
+  }
+
+  private static double sinc(double x) {
+    return (x == 0) ? 1 : Math.sin(Math.PI * x) / (Math.PI * x);
+  }
+
+  // Modified Bessel function of the first kind, order 0, for the Kaiser window.
+  private static double bessel(double x) {
+    double sum = 1, term = 1;
+    for (int k = 1; term > sum * 1e-12; k++) {
+      term *= (x / (2 * k)) * (x / (2 * k));
+      sum += term;
+    }
+    return sum;
+  }
+
+  private static int gcd(int a, int b) {
+    return (b == 0) ? a : gcd(b, a % b);
+  }
+}
@@ -0,0 +1,83 @@
+package Backend.Algorithm;
+
+/**
+ * Growable primitive left/right sample arrays for audio whose length isn't known up front.
+ * How to use: Call append with each block read from a PcmSource, then call getChannel once reading ends.
+ * Keeps track of the most memory it had allocated at once so Reader can report decode memory use.
+ */
+class SampleBuffer {
+  private static final int MIN_CAPACITY = 16384; // samples per channel
+
+  private final boolean stereo;
+  private short[] left, right;
+  private int size;
+
+  private long peakBytes;
+
+  SampleBuffer(boolean stereo, int expectedSamples) {
+    this.stereo = stereo;
+    int capacity = Math.max(expectedSamples, MIN_CAPACITY);
+    left = new short[capacity];
+    right = stereo ? new short[capacity] : null;
+    peakBytes = channelBytes(capacity);
+  }
+
+  // Copies the first length samples of a block. blockRight is ignored for mono audio.
+  void append(short[] blockLeft, short[] blockRight, int length) {
+    ensureCapacity(size + length);
+    System.arraycopy(blockLeft, 0, left, size, length);
+    if (stereo)
+      System.arraycopy(blockRight, 0, right, size, length);
+    size += length;
+  }
+
+  // Returns samples trimmed to the decoded length. Returns null for right channel of mono audio.
+  short[] getChannel(Reader.Channel channel) {
+    if (size != left.length)
+      resize(size);
+    return (channel == Reader.Channel.LEFT) ? left : right;
+  }
+
+  // Returns the current backing array without trimming. Only the first size() samples are audio.
+  // Samples already in the array never change, even after the buffer grows into a new array.
+  short[] getBuffer(Reader.Channel channel) {
+    return (channel == Reader.Channel.LEFT) ? left : right;
+  }
+
+  int size() {
+    return size;
+  }
+
+  boolean isStereo() {
+    return stereo;
+  }
+
+  // Most bytes held by the sample arrays at any one time, including while growing or trimming.
+  long getPeakBytes() {
+    return peakBytes;
+  }
+
+  private void ensureCapacity(int required) {
+    if (required <= left.length)
+      return;
+    int capacity = Math.max(required, left.length + (left.length >> 1));
+    resize(capacity);
+  }
+
+  // Old and new arrays are both alive during the copy, so both count towards the peak.
+  private void resize(int capacity) {
+    peakBytes = Math.max(peakBytes, channelBytes(left.length) + channelBytes(capacity));
+    short[] newLeft = new short[capacity];
+    System.arraycopy(left, 0, newLeft, 0, size);
+    left = newLeft;
+    if (stereo) {
+      short[] newRight = new short[capacity];
+      System.arraycopy(right, 0, newRight, 0, size);
+      right = newRight;
+    }
+  }
+
+  private long channelBytes(int capacity) {
+    return (long) capacity * Short.BYTES * (stereo ? 2 : 1);
+  }
+}
@@ -0,0 +1,150 @@
+package Backend.Algorithm;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * RMS gate that finds the parts of a song that aren't silent, so Transform can skip silent intros, outros and
+ * gaps between hidden tracks. Audio is measured in short blocks, and a block is silent when the RMS of its louder
+ * channel is below the threshold. Silence at the start and end is always dropped, silence in the middle only when it
+ * lasts at least minGap, and padding is kept around each sound region so fades and onsets aren't cut off.
+ * If the whole song is silent, nothing is dropped.
+ * How to use: Pass DEFAULT (or your own) to Transform, then get what was dropped with Transform.getTrimmedSeconds.
+ */
+public class SilenceGate implements AudioSelection {
+  public static final SilenceGate DEFAULT = new SilenceGate(-60, 2, 0.25);
+  // Length of each measured block.
+  private static final double BLOCK_SECONDS = 0.05;
+
+  private final double thresholdDb, minGapSeconds, paddingSeconds;
+
+  /**
+   * @param thresholdDb Blocks quieter than this, relative to a full amplitude sine wave, are silent.
+   * @param minGapSeconds Shortest silence in the middle of a song that is dropped.
+   * @param paddingSeconds Silence kept before and after each sound region.
+   */
+  public SilenceGate(double thresholdDb, double minGapSeconds, double paddingSeconds) {
+    if (thresholdDb > 0 || minGapSeconds < 0 || paddingSeconds < 0 || minGapSeconds < 2 * paddingSeconds)
+      throw new IllegalArgumentException("SilenceGate: Needs threshold <= 0 dB and 0 <= 2 * padding <= gap, were "
+          + thresholdDb + " dB, " + minGapSeconds + " and " + paddingSeconds + " seconds");
+    this.thresholdDb = thresholdDb;
+    this.minGapSeconds = minGapSeconds;
+    this.paddingSeconds = paddingSeconds;
+  }
+
+  public double getThresholdDb() {
+    return thresholdDb;
+  }
+
+  public double getMinGapSeconds() {
+    return minGapSeconds;
+  }
+
+  public double getPaddingSeconds() {
+    return paddingSeconds;
+  }
+
+  // Sound regions of a whole song, as [start, end) audio sample pairs.
+  @Override
+  public List<int[]> select(short[][] channels, int length, int sampleRate) {
+    Tracker tracker = track(sampleRate);
+    tracker.append(channels, 0, length);
+    tracker.finish();
+    return tracker.getRegions();
+  }
+
+  // Leaving out silence doesn't change what the song sounds like.
+  @Override
+  public boolean isApproximate() {
+    return false;
+  }
+
+  Tracker track(int sampleRate) {
+    return new Tracker(sampleRate);
+  }
+
+  // Finds sound regions of audio that is appended a block at a time, so the regions at the start of a song are known
+  // before the end has been read.
+  class Tracker {
+    private final int blockSamples, minGap, padding;
+    // Mean square below this is silent.
+    private final double threshold;
+    // Closed regions, as [start, end) audio sample pairs.
+    private final List<int[]> regions = new ArrayList<>();
+    // Sum of squares of the block being measured, for each channel.
+    private double leftSum, rightSum;
+    private int blockFill, position;
+    // Start of the region that is still open, or -1. End of its last loud block.
+    private int regionStart = -1, lastLoudEnd;
+    private boolean finished;
+
+    private Tracker(int sampleRate) {
+      blockSamples = Math.max(1, (int) Math.round(sampleRate * BLOCK_SECONDS));
+      minGap = (int) Math.round(sampleRate * minGapSeconds);
+      padding = (int) Math.round(sampleRate * paddingSeconds);
+      double amplitude = Short.MAX_VALUE * Math.pow(10, thresholdDb / 20);
+      // RMS of a sine wave is its amplitude / sqrt(2).
+      threshold = amplitude * amplitude / 2;
+    }
+
+    // Measures samples [offset, offset + length) of each channel, which follow the samples appended before.
+    void append(short[][] channels, int offset, int length) {
+      short[] left = channels[0], right = (channels.length > 1) ? channels[1] : null;
+      for (int i = offset; i < offset + length; i++) {
+        leftSum += left[i] * left[i];
+        if (right != null)
+          rightSum += right[i] * right[i];
+        if (++blockFill == blockSamples)
+          endBlock();
+      }
+    }
+
+    // Measures the last, shorter block and closes the open region. Keeps everything if no block was loud.
+    void finish() {
+      if (blockFill > 0)
+        endBlock();
+      if (regionStart >= 0)
+        regions.add(new int[]{regionStart, Math.min(lastLoudEnd + padding, position)});
+      if (regions.isEmpty() && position > 0)
+        regions.add(new int[]{0, position});
+      regionStart = -1;
+      finished = true;
+    }
+
+    // Regions that can no longer change. Before finish, the open region is included up to decidedEnd.
+    List<int[]> getRegions() {
+      List<int[]> result = new ArrayList<>(regions);
+      if (regionStart >= 0 && decidedEnd() > regionStart)
+        result.add(new int[]{regionStart, decidedEnd()});
+      return result;
+    }
+
+    // Audio samples before this are either in a region or dropped for good.
+    int decidedEnd() {
+      if (finished)
+        return position;
+      return (regionStart >= 0) ? Math.min(lastLoudEnd + padding, position) : position;
+    }
+
+    private void endBlock() {
+      int blockStart = position;
+      position += blockFill;
+      double meanSquare = Math.max(leftSum, rightSum) / blockFill;
+      leftSum = 0;
+      rightSum = 0;
+      blockFill = 0;
+
+      if (meanSquare >= threshold) {
+        if (regionStart < 0) {
+          int previousEnd = regions.isEmpty() ? 0 : regions.get(regions.size() - 1)[1];
+          regionStart = Math.max(previousEnd, blockStart - padding);
+        }
+        lastLoudEnd = position;
+      } else if (regionStart >= 0 && position - lastLoudEnd >= minGap) {
+        // Silence is long enough to drop, so the region before it is done.
+        regions.add(new int[]{regionStart, lastLoudEnd + padding});
+        regionStart = -1;
+      }
+    }
+  }
+}
@@ -0,0 +1,55 @@
+package Backend.Algorithm;
+
+/**
+ * Switch for the vectorized (SIMD) inner loops in SimdKernels, which use the incubating Vector API.
+ * SimdKernels is only compiled with the simd Maven profile, and only loads when the JVM is started with
+ * --add-modules jdk.incubator.vector. Otherwise isAvailable is false and everything runs the scalar loops, so nothing
+ * else has to check.
+ * How to use: Call transform when isEnabled is true. setEnabled(false) forces the scalar loops.
+ */
+public class Simd {
+  // Widest vector in floats. Kernels are padded with zeros to a multiple of this, so vector loops need no tail.
+  static final int MAX_LANES = 16;
+
+  // Implemented by SimdKernels, which is loaded by name so this class never links against the Vector API.
+  interface Kernel {
+    // Magnitude of the sum of samples[start + i] * (cos[i], sin[i]). cos and sin must be padded with zeros
+    // to a multiple of MAX_LANES, and samples must have that many values after start.
+    float transform(float[] samples, int start, float[] cos, float[] sin);
+  }
+
+  private static final Kernel kernel = load();
+  private static volatile boolean enabled = kernel != null;
+
+  public static boolean isAvailable() {
+    return kernel != null;
+  }
+
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  // Turns the vector loops on or off. Has no effect if the Vector API isn't available.
+  public static void setEnabled(boolean enabled) {
+    Simd.enabled = enabled && kernel != null;
+  }
+
+  // Only call when isEnabled is true.
+  static float transform(float[] samples, int start, float[] cos, float[] sin) {
+    return kernel.transform(samples, start, cos, sin);
+  }
+
+  // Rounds length up to a multiple of MAX_LANES.
+  static int padded(int length) {
+    return (length + MAX_LANES - 1) / MAX_LANES * MAX_LANES;
+  }
+
+  // Null if SimdKernels wasn't compiled in, or the jdk.incubator.vector module isn't there to link it against.
+  private static Kernel load() {
+    try {
+      return (Kernel) Class.forName("Backend.Algorithm.SimdKernels").getDeclaredConstructor().newInstance();
+    } catch (ReflectiveOperationException | LinkageError e) {
+      return null;
+    }
+  }
+}
@@ -0,0 +1,41 @@
+package Backend.Algorithm;
+
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Vector API versions of Transform's inner loops. Only compiled with the simd Maven profile, and only loaded by Simd
+ * when the jdk.incubator.vector module is there, so call them through Simd.
+ * Sums are kept in floats, like the scalar loops, so the two only differ by the order of the additions.
+ */
+class SimdKernels implements Simd.Kernel {
+  // Widest vector the CPU has, up to 256 bits. Windows start anywhere in the audio, so 512-bit loads nearly
+  // always cross a cache line, and measured slower than 256-bit ones. Set the simd.bits system property to
+  // 128, 256 or 512 to choose. It has to be a constant, or the vectors don't get compiled to registers.
+  private static final VectorSpecies<Float> SPECIES = species(Integer.getInteger("simd.bits", 0));
+
+  @Override
+  public float transform(float[] samples, int start, float[] cos, float[] sin) {
+    FloatVector realSum = FloatVector.zero(SPECIES), complexSum = FloatVector.zero(SPECIES);
+    for (int i = 0; i < cos.length; i += SPECIES.length()) {
+      FloatVector sample = FloatVector.fromArray(SPECIES, samples, start + i);
+      realSum = FloatVector.fromArray(SPECIES, cos, i).fma(sample, realSum);
+      complexSum = FloatVector.fromArray(SPECIES, sin, i).fma(sample, complexSum);
+    }
+    float real = realSum.reduceLanes(VectorOperators.ADD);
+    float complex = complexSum.reduceLanes(VectorOperators.ADD);
+    return (float) Math.sqrt((real * real) + (complex * complex));
+  }
+
+  private static VectorSpecies<Float> species(int bits) {
+    if (bits == 0)
+      bits = Math.min(FloatVector.SPECIES_PREFERRED.vectorBitSize(), 256);
+    return switch (bits) {
+      case 128 -> FloatVector.SPECIES_128;
+      case 256 -> FloatVector.SPECIES_256;
+      case 512 -> FloatVector.SPECIES_512;
+      default -> throw new IllegalArgumentException("SimdKernels: Vectors can be 128, 256 or 512 bits, not " + bits);
+    };
+  }
+}
@@ -1,38 +1,75 @@
 package Backend.Algorithm;
 
 import Backend.Algorithm.Reader.Channel;
+import Backend.Helper.AnalysisExecutor;
 import Backend.Helper.PrintHelper;
 
 import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveTask;
 
 /**
  * @author Ethan Carnahan
  * Basic sound analysis that calculates the perceived frequency balance and dynamics of a song.
  * How to use: Pass in a Transform object and duration, and call get methods for volume/dynamics information.
+ * Has one value per frequency bin of the transform's AnalysisConfig, and its files remember which config that was.
+ * Characteristics of a preview made from Excerpts are approximate until a full analysis replaces them.
+ * Saves to a versioned binary .simp file that loads with one bulk read, and still loads the older text files.
  */
 public class SimpleCharacteristics {
   //region Fields and public methods
+  protected final AnalysisConfig config;
+  // [start, end) seconds of silence, or audio between excerpts, that were left out of the analysis.
+  protected final double[][] trimmedSeconds;
+  // Only excerpts of the song were analysed.
+  protected final boolean approximate;
   // Average volume of each frequency bin.
   protected final double[] leftVolume, rightVolume;
   // Average rate of volume change for each frequency bin.
   protected final double[] leftRisePlusFall, rightRisePlusFall;
   protected final double[] leftRiseMinusFall, rightRiseMinusFall;
-  // Needed to weigh rise/fall differently.
-  private static final double VOLUME_CHANGE_EXPONENT = 2.0;
+  // Needed to weigh rise/fall differently. Rise and fall are squared.
   private static final double VOLUME_CHANGE_WEIGHT = 0.002;
+  // Time samples summed by each ChannelTask, see rowsPerTask.
+  private static final int TASKS_PER_THREAD = 2, MIN_ROWS_PER_TASK = 1024;
+  // Starts the line of trimmed seconds in text files.
+  private static final String TRIMMED = "Trimmed";
+  // Follows the mode in the first line of approximate text files.
+  private static final String APPROXIMATE = "Approximate";
+  // Start of binary files, "SIMP" in ASCII. Change VERSION whenever the binary layout changes.
+  private static final int MAGIC = 0x504D4953, VERSION = 1;
+  private static final int STEREO_FLAG = 1, APPROXIMATE_FLAG = 2;
+  private static final int HEADER_SIZE = 40;
 
   public SimpleCharacteristics(Normalizer normalizer) {
+    config = normalizer.getConfig();
+    trimmedSeconds = normalizer.getTrimmedSeconds();
+    approximate = normalizer.isApproximate();
     float[][] left = normalizer.getNormalized(Channel.LEFT);
     float[][] right = normalizer.getNormalized(Channel.RIGHT);
 
     System.out.println("SimpleCharacteristics: Calculating characteristics");
 
-    double[][] leftCharacteristics = calculateChannelInfo(left);
+    // Both channels' sums run as one task graph. There is no change across the gaps between regions.
+    int[] regionStarts = normalizer.getRegionStarts();
+    ChannelTask leftTask = new ChannelTask(left, regionStarts, 0, left.length, rowsPerTask(left.length));
+    ChannelTask rightTask = (right == null) ? null
+        : new ChannelTask(right, regionStarts, 0, right.length, rowsPerTask(right.length));
+    AnalysisExecutor.getShared().invokeAll(leftTask, rightTask);
+
+    double[][] leftCharacteristics = calculateChannelInfo(leftTask.join());
     leftVolume = leftCharacteristics[0];
     leftRisePlusFall = leftCharacteristics[1];
     leftRiseMinusFall = leftCharacteristics[2];
     if (right != null) {
-      double[][] rightCharacteristics = calculateChannelInfo(right);
+      double[][] rightCharacteristics = calculateChannelInfo(rightTask.join());
       rightVolume = rightCharacteristics[0];
       rightRisePlusFall = rightCharacteristics[1];
       rightRiseMinusFall = rightCharacteristics[2];
@@ -43,9 +80,32 @@ public class SimpleCharacteristics {
     }
   }
 
+  // From the accumulators of a whole song, right is null for mono. Nothing is trimmed or approximate.
+  public SimpleCharacteristics(AnalysisConfig config, Accumulator left, Accumulator right) {
+    if (left.bins != config.getFrequencyResolution() || (right != null && right.bins != left.bins))
+      throw new IllegalArgumentException("SimpleCharacteristics: Accumulators need " + config.getFrequencyResolution()
+          + " frequency bins for " + config);
+    this.config = config;
+    trimmedSeconds = new double[0][];
+    approximate = false;
+
+    double[][] leftCharacteristics = calculateChannelInfo(left);
+    leftVolume = leftCharacteristics[0];
+    leftRisePlusFall = leftCharacteristics[1];
+    leftRiseMinusFall = leftCharacteristics[2];
+    double[][] rightCharacteristics = (right == null) ? new double[3][] : calculateChannelInfo(right);
+    rightVolume = rightCharacteristics[0];
+    rightRisePlusFall = rightCharacteristics[1];
+    rightRiseMinusFall = rightCharacteristics[2];
+  }
+
   // Used for loading.
-  protected SimpleCharacteristics(double[] averageLeftVolume, double[] averageRightVolume,
-  double[] averageLeftRise, double[] averageRightRise, double[] averageLeftFall, double[] averageRightFall) {
+  protected SimpleCharacteristics(AnalysisConfig config, double[][] trimmedSeconds, boolean approximate,
+  double[] averageLeftVolume, double[] averageRightVolume, double[] averageLeftRise, double[] averageRightRise,
+  double[] averageLeftFall, double[] averageRightFall) {
+    this.config = config;
+    this.trimmedSeconds = trimmedSeconds;
+    this.approximate = approximate;
     this.leftVolume = averageLeftVolume;
     this.rightVolume = averageRightVolume;
     this.leftRisePlusFall = averageLeftRise;
@@ -66,99 +126,227 @@ public class SimpleCharacteristics {
     return (channel == Channel.LEFT) ? leftRiseMinusFall : rightRiseMinusFall;
   }
 
-  public void write(String filepath) throws IOException {
-    File file = new File(filepath + ".simp");
-    file.createNewFile();
-    BufferedWriter writer = new BufferedWriter(new FileWriter(file));
+  public AnalysisConfig getConfig() {
+    return config;
+  }
 
-    writer.write(rightVolume != null ? "Stereo" : "Mono");
-    writer.newLine();
-    writeArray(writer, leftVolume);
-    writeArray(writer, leftRisePlusFall);
-    writeArray(writer, leftRiseMinusFall);
-    if (rightVolume != null) {
-      writeArray(writer, rightVolume);
-      writeArray(writer, rightRisePlusFall);
-      writeArray(writer, rightRiseMinusFall);
-    }
+  public double[][] getTrimmedSeconds() {
+    return trimmedSeconds;
+  }
 
-    writer.flush();
-    writer.close();
+  public boolean isApproximate() {
+    return approximate;
   }
 
+  // Writes a binary .simp file, see the Saving region.
+  public void write(String filepath) throws IOException {
+    byte[] name = config.getName().getBytes(StandardCharsets.UTF_8);
+    int namePadded = (name.length + 7) & ~7;
+    int channels = (rightVolume != null) ? 2 : 1;
+    int doubles = (2 * trimmedSeconds.length) + (channels * 3 * config.getFrequencyResolution());
+    ByteBuffer buffer = ByteBuffer.allocate(HEADER_SIZE + namePadded + (doubles * Double.BYTES))
+        .order(ByteOrder.LITTLE_ENDIAN);
+
+    buffer.putInt(MAGIC).putInt(VERSION);
+    buffer.putInt(((channels == 2) ? STEREO_FLAG : 0) | (approximate ? APPROXIMATE_FLAG : 0));
+    buffer.putInt(config.getFrequencyResolution()).putInt(trimmedSeconds.length).putInt(name.length);
+    buffer.putDouble(config.getTimeResolution()).putDouble(config.getBottomFilterWidth());
+    buffer.put(name).position(HEADER_SIZE + namePadded);
+
+    DoubleBuffer values = buffer.asDoubleBuffer();
+    for (double[] range : trimmedSeconds)
+      values.put(range);
+    values.put(leftVolume).put(leftRisePlusFall).put(leftRiseMinusFall);
+    if (rightVolume != null)
+      values.put(rightVolume).put(rightRisePlusFall).put(rightRiseMinusFall);
+
+    Files.write(Paths.get(filepath + ".simp"), buffer.array());
+  }
+
+  // Reads the whole file at once. Binary files are recognized by MAGIC, anything else is read as the text
+  // format from before them.
   public static SimpleCharacteristics load(String filepath) throws IOException {
     if (!filepath.contains(".simp"))
       filepath = filepath + ".simp";
-    BufferedReader reader = new BufferedReader(new FileReader(filepath));
+    byte[] bytes = Files.readAllBytes(Paths.get(filepath));
+    ByteBuffer buffer = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    if (bytes.length >= Integer.BYTES && buffer.getInt(0) == MAGIC) {
+      try {
+        return loadBinary(buffer);
+      } catch (BufferUnderflowException | IndexOutOfBoundsException e) {
+        throw new IOException("SimpleCharacteristics: File is cut short - " + filepath);
+      }
+    }
+    return loadText(new BufferedReader(new InputStreamReader(new ByteArrayInputStream(bytes),
+        StandardCharsets.UTF_8)));
+  }
 
-    boolean stereo = reader.readLine().equals("Stereo");
+  /**
+   * Running sums of one channel that SimpleCharacteristics are calculated from: volume, squared rise and squared fall
+   * of each bin, and the first and last time samples for the change into and out of the segment. Takes constant
+   * memory however many time samples are added.
+   * How to use: Call add with each normalized time sample in order, or accumulate segments of a song separately (in
+   * parallel or while streaming) and merge each into the one before it. Segments that follow a trimmed gap are
+   * appended instead, so the splice doesn't count as a change. Then pass the whole song's accumulators to the
+   * SimpleCharacteristics constructor.
+   */
+  public static class Accumulator {
+    private final int bins;
+    // Volume, squared rise and squared fall of each bin, one after another.
+    private final double[] sums;
+    private final float[] first, last;
+    private long length;
+
+    public Accumulator(int bins) {
+      this.bins = bins;
+      sums = new double[3 * bins];
+      first = new float[bins];
+      last = new float[bins];
+    }
 
-    double[] lv = loadArray(reader);
-    double[] lr = loadArray(reader);
-    double[] lf = loadArray(reader);
-    double[] rv, rr, rf;
-    if (stereo) {
-      rv = loadArray(reader);
-      rr = loadArray(reader);
-      rf = loadArray(reader);
-    } else {
-      rv = null;
-      rr = null;
-      rf = null;
+    // Adds the time sample after the ones added or merged so far. Doesn't keep frame.
+    public void add(float[] frame) {
+      if (frame.length != bins)
+        throw new IllegalArgumentException("SimpleCharacteristics: Time sample has " + frame.length
+            + " frequency bins, accumulator has " + bins);
+      if (length == 0)
+        System.arraycopy(frame, 0, first, 0, bins);
+      else
+        addChange(last, frame);
+      for (int j = 0; j < bins; j++)
+        sums[j] += frame[j];
+      System.arraycopy(frame, 0, last, 0, bins);
+      length++;
     }
 
-    return new SimpleCharacteristics(lv, rv, lr, rr, lf, rf);
-  }
-  //endregion
+    // Adds a segment that starts right after this one ends, including the change between them.
+    public void merge(Accumulator later) {
+      merge(later, true);
+    }
 
-  //region Private methods
-  private static double[][] calculateChannelInfo(float[][] channel) {
-    double[][] result = new double[3][];
-    result[0] = calculateVolume(channel);
-    double[] rise = calculateVolumeChange(channel, true);
-    double[] fall = calculateVolumeChange(channel, false);
-    result[1] = riseAndFall(rise, fall, true);
-    result[2] = riseAndFall(rise, fall, false);
-    return result;
-  }
+    // Adds a segment that starts after a gap following this one, without a change between them.
+    public void append(Accumulator later) {
+      merge(later, false);
+    }
 
-  private static double[] calculateVolume(float[][] channel) {
-    double[] result = new double[channel[0].length];
+    // Time samples added so far.
+    public long getLength() {
+      return length;
+    }
 
-    // for each frequency
-    for (int i = 0; i < result.length; i++) {
-      result[i] = 0;
+    private void merge(Accumulator later, boolean adjacent) {
+      if (later.bins != bins)
+        throw new IllegalArgumentException("SimpleCharacteristics: Can't merge accumulators of " + later.bins
+            + " and " + bins + " frequency bins");
+      if (later.length == 0)
+        return;
+      if (length == 0)
+        System.arraycopy(later.first, 0, first, 0, bins);
+      else if (adjacent)
+        addChange(last, later.first);
+      for (int i = 0; i < sums.length; i++)
+        sums[i] += later.sums[i];
+      System.arraycopy(later.last, 0, last, 0, bins);
+      length += later.length;
+    }
 
-      // for each time
-      for (float[] sample : channel) {
-        result[i] += sample[i];
+    private void addChange(float[] previous, float[] next) {
+      for (int j = 0; j < bins; j++) {
+        double change = next[j] - previous[j];
+        if (change > 0)
+          sums[bins + j] += change * change;
+        else
+          sums[(2 * bins) + j] += change * change;
       }
+    }
+  }
+  //endregion
 
-      result[i] /= channel.length;
+  //region Private methods
+  // Averages of a channel from its accumulator.
+  private static double[][] calculateChannelInfo(Accumulator accumulator) {
+    if (accumulator.length == 0)
+      throw new IllegalArgumentException("SimpleCharacteristics: Accumulator has no time samples");
+    int bins = accumulator.bins;
+    double[] sums = accumulator.sums;
+    double length = accumulator.length;
+    double[] volume = new double[bins], rise = new double[bins], fall = new double[bins];
+    for (int j = 0; j < bins; j++) {
+      volume[j] = sums[j] / length;
+      rise[j] = sums[bins + j] * (VOLUME_CHANGE_WEIGHT / length);
+      fall[j] = sums[(2 * bins) + j] * (VOLUME_CHANGE_WEIGHT / length);
     }
 
+    double[][] result = new double[3][];
+    result[0] = volume;
+    result[1] = riseAndFall(rise, fall, true);
+    result[2] = riseAndFall(rise, fall, false);
     return result;
   }
 
-  private static double[] calculateVolumeChange(float[][] channel, boolean rise) {
-    double[] result = new double[channel[0].length];
+  // A couple of tasks per thread, each sweeping a block of whole time samples.
+  private static int rowsPerTask(int rows) {
+    int tasks = AnalysisExecutor.getShared().getMaxCoresPerJob() * TASKS_PER_THREAD;
+    return Math.max(MIN_ROWS_PER_TASK, (rows + tasks - 1) / tasks);
+  }
 
-    // for each frequency
-    for (int j = 0; j < result.length; j++) {
-      result[j] = 0;
+  // Accumulates time samples [start, end) of a channel, merging the blocks of each half in order. Splits at the
+  // region start nearest the middle first, so every leaf is within one region and regions are appended.
+  private static class ChannelTask extends RecursiveTask<Accumulator> {
+    private final float[][] channel;
+    private final int[] regionStarts;
+    private final int start, end, threshold;
+
+    private ChannelTask(float[][] channel, int[] regionStarts, int start, int end, int threshold) {
+      this.channel = channel;
+      this.regionStarts = regionStarts;
+      this.start = start;
+      this.end = end;
+      this.threshold = threshold;
+    }
 
-      // for each time
-      for (int i = 1; i < channel.length; i++) {
-        if (rise && channel[i][j] > channel[i-1][j])
-          result[j] += Math.pow((channel[i][j] - channel[i-1][j]), VOLUME_CHANGE_EXPONENT);
-        if (!rise && channel[i][j] < channel[i-1][j])
-          result[j] += Math.pow((channel[i-1][j] - channel[i][j]), VOLUME_CHANGE_EXPONENT);
+    @Override
+    protected Accumulator compute() {
+      int length = end - start;
+      int split = regionSplit();
+      boolean adjacent = split < 0;
+      if (adjacent && length <= threshold) {
+        Accumulator result = new Accumulator(channel[0].length);
+        for (int i = start; i < end; i++)
+          result.add(channel[i]);
+        return result;
       }
-
-      result[j] *= VOLUME_CHANGE_WEIGHT / channel.length;
+      if (adjacent)
+        split = start + (length / 2);
+
+      ChannelTask firstTask = new ChannelTask(channel, regionStarts, start, split, threshold);
+      firstTask.fork();
+      Accumulator second = new ChannelTask(channel, regionStarts, split, end, threshold).compute();
+      Accumulator result = firstTask.join();
+      if (adjacent)
+        result.merge(second);
+      else
+        result.append(second);
+      return result;
     }
 
-    return result;
+    // Region start after start and before end closest to the middle, or -1 if [start, end) is within one region.
+    private int regionSplit() {
+      int middle = start + ((end - start) / 2);
+      int index = Arrays.binarySearch(regionStarts, middle);
+      if (index >= 0)
+        return (middle > start) ? middle : -1;
+      index = -index - 1;
+      int before = (index > 0) ? regionStarts[index - 1] : -1;
+      int after = (index < regionStarts.length) ? regionStarts[index] : Integer.MAX_VALUE;
+      if (before <= start && after >= end)
+        return -1;
+      if (before <= start)
+        return after;
+      if (after >= end)
+        return before;
+      return (middle - before <= after - middle) ? before : after;
+    }
   }
 
   // Calculates either (rise + fall) or (rise - fall)
@@ -177,16 +365,98 @@ public class SimpleCharacteristics {
     return result;
   }
 
-  private static void writeArray(BufferedWriter writer, double[] array) throws IOException {
-    for (double value : array) {
-      writer.write(String.valueOf(value));
-      writer.newLine();
+  // Binary files are a HEADER_SIZE header: MAGIC, VERSION, flags, frequency bins, trimmed ranges, config name
+  // length, time resolution, bottom filter width. Then the config name padded to 8 bytes, the trimmed ranges and the
+  // left (then right) volume, rise + fall and rise - fall, all as little-endian doubles lined up on 8 bytes.
+  private static SimpleCharacteristics loadBinary(ByteBuffer buffer) throws IOException {
+    int version = buffer.getInt(4);
+    if (version != VERSION)
+      throw new IOException("SimpleCharacteristics: Unsupported .simp version " + version);
+    int flags = buffer.getInt(8), bins = buffer.getInt(12), trimmedRanges = buffer.getInt(16);
+    int nameLength = buffer.getInt(20);
+    double timeResolution = buffer.getDouble(24), bottomFilterWidth = buffer.getDouble(32);
+    int channels = ((flags & STEREO_FLAG) != 0) ? 2 : 1;
+    if (bins < 0 || trimmedRanges < 0 || nameLength < 0)
+      throw new IOException("SimpleCharacteristics: Header has negative sizes " + bins + ", " + trimmedRanges
+          + " and " + nameLength);
+    // In longs, so corrupted sizes can't overflow past the check.
+    long size = HEADER_SIZE + ((nameLength + 7L) & ~7L)
+        + (((2L * trimmedRanges) + (channels * 3L * bins)) * Double.BYTES);
+    if (size > buffer.capacity())
+      throw new IOException("SimpleCharacteristics: Header needs " + size + " bytes, file has " + buffer.capacity());
+
+    byte[] name = new byte[nameLength];
+    buffer.get(HEADER_SIZE, name);
+    AnalysisConfig config;
+    try {
+      config = AnalysisConfig.of(new String(name, StandardCharsets.UTF_8), timeResolution, bins, bottomFilterWidth);
+    } catch (IllegalArgumentException e) {
+      throw new IOException("SimpleCharacteristics: Header has an invalid config - " + e.getMessage());
+    }
+
+    DoubleBuffer values = buffer.position(HEADER_SIZE + ((nameLength + 7) & ~7)).slice()
+        .order(ByteOrder.LITTLE_ENDIAN).asDoubleBuffer();
+    double[][] trimmed = new double[trimmedRanges][2];
+    for (double[] range : trimmed)
+      values.get(range);
+    double[][] arrays = new double[6][];
+    for (int i = 0; i < channels * 3; i++) {
+      arrays[i] = new double[bins];
+      values.get(arrays[i]);
     }
+    return new SimpleCharacteristics(config, trimmed, (flags & APPROXIMATE_FLAG) != 0, arrays[0], arrays[3],
+        arrays[1], arrays[4], arrays[2], arrays[5]);
+  }
+
+  // Text files have the mode, "Approximate" if approximate, and the config header on the first line, then the
+  // trimmed line and one value per line. Older ones can be missing the config, approximate and trimmed parts.
+  private static SimpleCharacteristics loadText(BufferedReader reader) throws IOException {
+    String[] header = reader.readLine().split(" ", 2);
+    boolean stereo = header[0].equals("Stereo");
+    boolean approximate = header.length > 1 && header[1].startsWith(APPROXIMATE + " ");
+    if (approximate)
+      header[1] = header[1].substring(APPROXIMATE.length() + 1);
+    AnalysisConfig config = (header.length > 1) ? AnalysisConfig.fromHeader(header[1]) : AnalysisConfig.BALANCED;
+    int bins = config.getFrequencyResolution();
+    double[][] trimmed = loadTrimmed(reader);
+
+    double[] lv = loadArray(reader, bins);
+    double[] lr = loadArray(reader, bins);
+    double[] lf = loadArray(reader, bins);
+    double[] rv, rr, rf;
+    if (stereo) {
+      rv = loadArray(reader, bins);
+      rr = loadArray(reader, bins);
+      rf = loadArray(reader, bins);
+    } else {
+      rv = null;
+      rr = null;
+      rf = null;
+    }
+
+    return new SimpleCharacteristics(config, trimmed, approximate, lv, rv, lr, rr, lf, rf);
+  }
+
+  // Older files have no trimmed line, and nothing was trimmed.
+  private static double[][] loadTrimmed(BufferedReader reader) throws IOException {
+    reader.mark(1024);
+    String line = reader.readLine();
+    if (line == null || !line.startsWith(TRIMMED)) {
+      reader.reset();
+      return new double[0][];
+    }
+    String[] values = line.substring(TRIMMED.length()).trim().split(" ");
+    if (values[0].isEmpty())
+      return new double[0][];
+    double[][] result = new double[values.length / 2][];
+    for (int i = 0; i < result.length; i++)
+      result[i] = new double[]{Double.parseDouble(values[2 * i]), Double.parseDouble(values[(2 * i) + 1])};
+    return result;
   }
 
-  private static double[] loadArray(BufferedReader reader) throws IOException {
-    double[] result = new double[Transform.FREQUENCY_RESOLUTION];
-    for (int i = 0; i < Transform.FREQUENCY_RESOLUTION; i++)
+  private static double[] loadArray(BufferedReader reader, int bins) throws IOException {
+    double[] result = new double[bins];
+    for (int i = 0; i < bins; i++)
       result[i] = Double.parseDouble(reader.readLine());
     return result;
   }
@@ -197,7 +467,7 @@ public class SimpleCharacteristics {
     try {
       Reader reader = Reader.readFile(args[0]);
       Transform transform = new Transform(reader);
-      Normalizer normalizer = new Normalizer(transform);
+      Normalizer normalizer = new Normalizer(transform, true);
       long startTime = System.nanoTime();
       SimpleCharacteristics simpleCharacteristics = new SimpleCharacteristics(normalizer);
       System.out.println("Calculation time: " + ((System.nanoTime() - startTime) / 1000000000.0) + " seconds");
@@ -207,7 +477,7 @@ public class SimpleCharacteristics {
       double[] leftRise = simpleCharacteristics.getAverageRisePlusFall(Channel.LEFT);
       double[] leftFall = simpleCharacteristics.getAverageRiseMinusFall(Channel.LEFT);
 
-      PrintHelper.printFrequencies();
+      PrintHelper.printFrequencies(simpleCharacteristics.getConfig());
       PrintHelper.printValues("Loudness", leftVolume);
       PrintHelper.printValues("Rise+Fall", leftRise);
       PrintHelper.printValues("Rise-Fall", leftFall);
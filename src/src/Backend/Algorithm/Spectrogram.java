@@ -0,0 +1,69 @@
+package Backend.Algorithm;
+
+import java.util.List;
+
+/**
+ * Amplitude of every frequency bin at every time sample, in one preallocated row per time sample.
+ * Value (frame, bin) is at getRow(frame)[bin], so each time sample's bins are next to each other.
+ * How to use: Get one from Transform.getSpectrogram, then read values with get, getRow or getRows.
+ * Transform's tasks write their time samples into it in place, and rows are handed out as they are, so it is never
+ * copied while being made or read.
+ */
+public class Spectrogram {
+  private final float[][] rows;
+  private final int bins;
+
+  Spectrogram(int frames, int bins) {
+    this(new float[frames][bins], bins);
+  }
+
+  private Spectrogram(float[][] rows, int bins) {
+    this.rows = rows;
+    this.bins = bins;
+  }
+
+  // Puts batches of time samples in order into one spectrogram. Only the row references are copied.
+  static Spectrogram concatenate(List<Spectrogram> parts, int bins) {
+    int frames = 0;
+    for (Spectrogram part : parts)
+      frames += part.rows.length;
+    float[][] rows = new float[frames][];
+    int offset = 0;
+    for (Spectrogram part : parts) {
+      System.arraycopy(part.rows, 0, rows, offset, part.rows.length);
+      offset += part.rows.length;
+    }
+    return new Spectrogram(rows, bins);
+  }
+
+  public int getFrameCount() {
+    return rows.length;
+  }
+
+  public int getBinCount() {
+    return bins;
+  }
+
+  public float get(int frame, int bin) {
+    return rows[frame][bin];
+  }
+
+  void set(int frame, int bin, float value) {
+    rows[frame][bin] = value;
+  }
+
+  // One time sample's bins, not a copy. Changing it changes the spectrogram.
+  public float[] getRow(int frame) {
+    return rows[frame];
+  }
+
+  // Every row in the [time][frequency] layout, not a copy. Changing them changes the spectrogram.
+  public float[][] getRows() {
+    return rows;
+  }
+
+  // Copies one time sample's bins into row.
+  public void getFrame(int frame, float[] row) {
+    System.arraycopy(rows[frame], 0, row, 0, bins);
+  }
+}
@@ -1,6 +1,7 @@
 package Backend.Algorithm;
 
 import Backend.Algorithm.Reader.Channel;
+import Backend.Helper.AnalysisExecutor;
 import Backend.Helper.PrintHelper;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
@@ -11,7 +12,6 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.Arrays;
-import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.RecursiveTask;
 import java.util.zip.GZIPInputStream;
 import java.util.zip.GZIPOutputStream;
@@ -21,6 +21,7 @@ import java.util.zip.GZIPOutputStream;
  * Advanced sound analysis that analyzes:
  * - How a frequency bin's volume changes correlates with the volume changes of other bins over time.
  * - The best-matching frequencies of each bin's peaks (BPM).
+ * Correlations look up to one second ahead, so their length depends on the AnalysisConfig's time resolution.
  */
 public class TemporalCharacteristics extends SimpleCharacteristics {
   //region Fields and public methods
@@ -28,11 +29,11 @@ public class TemporalCharacteristics extends SimpleCharacteristics {
   private final float[][][] leftCorrelaton, rightCorrelation;
   // Dimensions from left-to-right: [This bin][Possible peak frequency]
   private final double[][] leftPeakRates, rightPeakRates;
-  // Number of samples to look ahead.
-  private static final int CORRELATION_SAMPLES = (int)Math.round(Transform.TIME_RESOLUTION * 1); // From 0 to 1 second ahead
+  // Seconds to look ahead.
+  private static final double CORRELATION_SECONDS = 1; // From 0 to 1 second ahead
   // Which peak rates to check in beats-per-minute.
   public static final int RATE_MIN = 15;
-  public static final int RATE_MAX = 300; // Needs to be less than (60 * Transform.TIME_RESOLUTION / 3).
+  public static final int RATE_MAX = 300; // Needs to be less than (60 * time resolution / 3) of every preset.
 
   public TemporalCharacteristics(Normalizer normalizer) {
     super(normalizer);
@@ -41,22 +42,28 @@ public class TemporalCharacteristics extends SimpleCharacteristics {
 
     System.out.println("TemporalCharacteristics: Calculating characteristics");
 
-    leftCorrelaton = calculateCorrelation(left, getAverageVolume(Channel.LEFT));
-    leftPeakRates = calculatePeakRates(left, getAverageVolume(Channel.LEFT));
-    if (right != null) {
-      rightCorrelation = calculateCorrelation(right, getAverageVolume(Channel.RIGHT));
-      rightPeakRates = calculatePeakRates(right, getAverageVolume(Channel.RIGHT));
-    } else {
-      rightCorrelation = null;
-      rightPeakRates = null;
-    }
+    // Both characteristics of both channels run as one task graph.
+    boolean[] afterGap = afterGap(normalizer.getRegionStarts(), left.length);
+    CorrelationTask leftCorrelationTask = correlationTask(config, left, afterGap, getAverageVolume(Channel.LEFT));
+    PeakRatesTask leftPeakRatesTask = peakRatesTask(config, left, getAverageVolume(Channel.LEFT));
+    CorrelationTask rightCorrelationTask = (right == null) ? null
+        : correlationTask(config, right, afterGap, getAverageVolume(Channel.RIGHT));
+    PeakRatesTask rightPeakRatesTask = (right == null) ? null
+        : peakRatesTask(config, right, getAverageVolume(Channel.RIGHT));
+    AnalysisExecutor.getShared().invokeAll(leftCorrelationTask, leftPeakRatesTask, rightCorrelationTask,
+        rightPeakRatesTask);
+
+    leftCorrelaton = leftCorrelationTask.join();
+    leftPeakRates = leftPeakRatesTask.join();
+    rightCorrelation = (right == null) ? null : rightCorrelationTask.join();
+    rightPeakRates = (right == null) ? null : rightPeakRatesTask.join();
   }
 
   // Used for loading
   private TemporalCharacteristics(SimpleCharacteristics simple, float[][][] leftCorrelaton, float[][][] rightCorrelation,
       double[][] leftPeakRates, double[][] rightPeakRates) {
-    super(simple.leftVolume, simple.rightVolume, simple.leftRisePlusFall, simple.rightRisePlusFall,
-        simple.leftRiseMinusFall, simple.rightRiseMinusFall);
+    super(simple.config, simple.trimmedSeconds, simple.approximate, simple.leftVolume, simple.rightVolume, simple.leftRisePlusFall,
+        simple.rightRisePlusFall, simple.leftRiseMinusFall, simple.rightRiseMinusFall);
     this.leftCorrelaton = leftCorrelaton;
     this.rightCorrelation = rightCorrelation;
     this.leftPeakRates = leftPeakRates;
@@ -121,13 +128,14 @@ public class TemporalCharacteristics extends SimpleCharacteristics {
 
     boolean stereo = reader.readLine().equals("Stereo");
 
-    float[][][] lc = loadCorrelationArray(reader);
-    double[][] lr = loadPeakRateArray(reader);
+    // Dimensions come from the config saved with the simple characteristics.
+    float[][][] lc = loadCorrelationArray(reader, sc.getConfig());
+    double[][] lr = loadPeakRateArray(reader, sc.getConfig());
     float[][][] rc = null;
     double[][] rr = null;
     if (stereo) {
-      rc = loadCorrelationArray(reader);
-      rr = loadPeakRateArray(reader);
+      rc = loadCorrelationArray(reader, sc.getConfig());
+      rr = loadPeakRateArray(reader, sc.getConfig());
     }
 
     return new TemporalCharacteristics(sc, lc, rc, lr, rr);
@@ -135,22 +143,39 @@ public class TemporalCharacteristics extends SimpleCharacteristics {
   //endregion
 
   //region Private methods
-  private static float[][][] calculateCorrelation(float[][] channel, double[] averageVolume) {
-    CorrelationTask task = new CorrelationTask(channel, averageVolume, 0, Transform.FREQUENCY_RESOLUTION);
-    try (ForkJoinPool fjp = new ForkJoinPool()) {
-      return fjp.invoke(task);
-    }
+  // Number of samples to look ahead.
+  private static int correlationSamples(AnalysisConfig config) {
+    return (int)Math.round(config.getTimeResolution() * CORRELATION_SECONDS);
+  }
+
+  // True for the time samples right after a trimmed gap, whose change from the time sample before is a splice.
+  private static boolean[] afterGap(int[] regionStarts, int length) {
+    boolean[] result = new boolean[length];
+    for (int i = 1; i < regionStarts.length; i++)
+      if (regionStarts[i] < length)
+        result[regionStarts[i]] = true;
+    return result;
+  }
+
+  private static CorrelationTask correlationTask(AnalysisConfig config, float[][] channel, boolean[] afterGap,
+      double[] averageVolume) {
+    return new CorrelationTask(channel, afterGap, averageVolume, correlationSamples(config), 0,
+        config.getFrequencyResolution());
   }
 
   private static class CorrelationTask extends RecursiveTask<float[][][]> {
     private final float[][] channel;
+    private final boolean[] afterGap;
     private final double[] averageVolume;
-    private final int start, end;
+    private final int correlationSamples, start, end;
     private static final int THRESHOLD = 1;
 
-    public CorrelationTask(float[][] channel, double[] averageVolume, int start, int end) {
+    public CorrelationTask(float[][] channel, boolean[] afterGap, double[] averageVolume, int correlationSamples,
+        int start, int end) {
       this.channel = channel;
+      this.afterGap = afterGap;
       this.averageVolume = averageVolume;
+      this.correlationSamples = correlationSamples;
       this.start = start;
       this.end = end;
     }
@@ -161,9 +186,11 @@ public class TemporalCharacteristics extends SimpleCharacteristics {
       if (length <= THRESHOLD)
         return partialCorrelation();
 
-      CorrelationTask task1 = new CorrelationTask(channel, averageVolume, start, start + (length/2));
+      CorrelationTask task1 = new CorrelationTask(channel, afterGap, averageVolume, correlationSamples, start,
+          start + (length/2));
       task1.fork();
-      CorrelationTask task2 = new CorrelationTask(channel, averageVolume, start + (length/2), end);
+      CorrelationTask task2 = new CorrelationTask(channel, afterGap, averageVolume, correlationSamples,
+          start + (length/2), end);
       float[][][] result2 = task2.compute();
       float[][][] result1 = task1.join();
 
@@ -171,11 +198,11 @@ public class TemporalCharacteristics extends SimpleCharacteristics {
     }
 
     private float[][][] partialCorrelation() {
-      float[][][] result = new float[end - start][Transform.FREQUENCY_RESOLUTION][CORRELATION_SAMPLES];
+      float[][][] result = new float[end - start][averageVolume.length][correlationSamples];
       for (int i = start; i < end; i++)
         for (int j = 0; j < result[0].length; j++)
           for (int k = 0; k < result[0][0].length; k++)
-            result[i - start][j][k] = (float) correlation(channel, i, j, k, averageVolume);
+            result[i - start][j][k] = (float) correlation(channel, afterGap, i, j, k, averageVolume);
       return result;
     }
 
@@ -194,8 +221,9 @@ public class TemporalCharacteristics extends SimpleCharacteristics {
     }
   }
 
-  // Pearson correlation.
-  private static double correlation(float[][] channel, int binA, int binB, int samplesAhead, double[] averageVolume) {
+  // Pearson correlation. Changes across a trimmed gap are left out.
+  private static double correlation(float[][] channel, boolean[] afterGap, int binA, int binB, int samplesAhead,
+      double[] averageVolume) {
     if (binA == binB && samplesAhead == 0)
       return 1.0;
 
@@ -212,6 +240,8 @@ public class TemporalCharacteristics extends SimpleCharacteristics {
     double sumX = 0.0, sumY = 0.0, sumXY = 0.0;
 
     for (int i = 1; i < channel.length - samplesAhead; i++) {
+      if (afterGap[i] || afterGap[i + samplesAhead])
+        continue;
       double x = (channel[i][binA] - channel[i - 1][binA]);
       double y = (channel[i + samplesAhead][binB] - channel[i + samplesAhead - 1][binB]);
       sumX += x * x;
@@ -222,22 +252,21 @@ public class TemporalCharacteristics extends SimpleCharacteristics {
     return sumXY / Math.sqrt(sumX * sumY);
   }
 
-  private static double[][] calculatePeakRates(float[][] channel, double[] averageVolume) {
-    PeakRatesTask task = new PeakRatesTask(channel, averageVolume, 0, Transform.FREQUENCY_RESOLUTION);
-    try (ForkJoinPool fjp = new ForkJoinPool()) {
-      return fjp.invoke(task);
-    }
+  private static PeakRatesTask peakRatesTask(AnalysisConfig config, float[][] channel, double[] averageVolume) {
+    return new PeakRatesTask(channel, averageVolume, config.getTimeResolution(), 0, config.getFrequencyResolution());
   }
 
   private static class PeakRatesTask extends RecursiveTask<double[][]> {
     private final float[][] channel;
     private final double[] averageVolume;
+    private final double timeResolution;
     private final int start, end;
     private static final int THRESHOLD = 1;
 
-    public PeakRatesTask(float[][] channel, double[] averageVolume, int start, int end) {
+    public PeakRatesTask(float[][] channel, double[] averageVolume, double timeResolution, int start, int end) {
       this.channel = channel;
       this.averageVolume = averageVolume;
+      this.timeResolution = timeResolution;
       this.start = start;
       this.end = end;
     }
@@ -248,9 +277,9 @@ public class TemporalCharacteristics extends SimpleCharacteristics {
       if (length <= THRESHOLD)
         return partialPeakRates();
 
-      PeakRatesTask task1 = new PeakRatesTask(channel, averageVolume, start, start + (length/2));
+      PeakRatesTask task1 = new PeakRatesTask(channel, averageVolume, timeResolution, start, start + (length/2));
       task1.fork();
-      PeakRatesTask task2 = new PeakRatesTask(channel, averageVolume, start + (length/2), end);
+      PeakRatesTask task2 = new PeakRatesTask(channel, averageVolume, timeResolution, start + (length/2), end);
       double[][] result2 = task2.compute();
       double[][] result1 = task1.join();
 
@@ -261,7 +290,7 @@ public class TemporalCharacteristics extends SimpleCharacteristics {
       double[][] result = new double[end - start][RATE_MAX - RATE_MIN + 1];
       for (int i = start; i < end; i++)
         for (int j = 0; j < result[0].length; j++)
-          result[i - start][j] = peakRateMatch(channel, i, RATE_MIN + j, averageVolume);
+          result[i - start][j] = peakRateMatch(channel, i, RATE_MIN + j, averageVolume, timeResolution);
       return result;
     }
 
@@ -281,11 +310,12 @@ public class TemporalCharacteristics extends SimpleCharacteristics {
   // Generate a peak detection window for each BPM, with {-1.0, 1.0, 1.0, -1.0} being the smallest possible window.
   // Slide window across channel to generate "is peak" values for each sample.
   // Iterate across "is peak" array by different amounts for each BPM to calculate match amount.
-  private static double peakRateMatch(float[][] channel, int bin, int rate, double[] averageVolume) {
+  private static double peakRateMatch(float[][] channel, int bin, int rate, double[] averageVolume,
+      double timeResolution) {
     double result = 0.0;
-    double samplesPerBeat = Transform.TIME_RESOLUTION / (rate / 60.0);
+    double samplesPerBeat = timeResolution / (rate / 60.0);
 
-    double[] window = getWindow(rate);
+    double[] window = getWindow(rate, timeResolution);
     double[] peaks = getPeaks(channel, bin, window);
 
     double start, end;
@@ -299,9 +329,9 @@ public class TemporalCharacteristics extends SimpleCharacteristics {
     return result / ((channel.length - samplesPerBeat - 1));
   }
 
-  private static double[] getWindow(int rate) {
+  private static double[] getWindow(int rate, double timeResolution) {
     // convert rate from BPM to minimum required odd window length
-    int windowLength = (int)Math.ceil(Transform.TIME_RESOLUTION / (rate / 60.0));
+    int windowLength = (int)Math.ceil(timeResolution / (rate / 60.0));
     if (windowLength % 2 == 1) windowLength++;
 
     // calculate window values
@@ -351,8 +381,9 @@ public class TemporalCharacteristics extends SimpleCharacteristics {
     }
   }
 
-  private static float[][][] loadCorrelationArray(BufferedReader reader) throws IOException {
-    float[][][] result = new float[Transform.FREQUENCY_RESOLUTION][Transform.FREQUENCY_RESOLUTION][CORRELATION_SAMPLES];
+  private static float[][][] loadCorrelationArray(BufferedReader reader, AnalysisConfig config) throws IOException {
+    int bins = config.getFrequencyResolution();
+    float[][][] result = new float[bins][bins][correlationSamples(config)];
     for (int i = 0; i < result.length; i++)
       for (int j = 0; j < result[0].length; j++)
         for (int k = 0; k < result[0][0].length; k++)
@@ -369,8 +400,8 @@ public class TemporalCharacteristics extends SimpleCharacteristics {
     }
   }
 
-  private static double[][] loadPeakRateArray(BufferedReader reader) throws IOException {
-    double[][] result = new double[Transform.FREQUENCY_RESOLUTION][RATE_MAX - RATE_MIN + 1];
+  private static double[][] loadPeakRateArray(BufferedReader reader, AnalysisConfig config) throws IOException {
+    double[][] result = new double[config.getFrequencyResolution()][RATE_MAX - RATE_MIN + 1];
     for (int i = 0; i < result.length; i++)
       for (int j = 0; j < result[0].length; j++)
         result[i][j] = Double.parseDouble(reader.readLine());
@@ -383,17 +414,18 @@ public class TemporalCharacteristics extends SimpleCharacteristics {
     try {
       Reader reader = Reader.readFile(args[0]);
       Transform transform = new Transform(reader);
-      Normalizer normalizer = new Normalizer(transform);
+      Normalizer normalizer = new Normalizer(transform, true);
       long startTime = System.nanoTime();
       TemporalCharacteristics temporalCharacteristics = new TemporalCharacteristics(normalizer);
       System.out.println("Calculation time: " + ((System.nanoTime() - startTime) / 1000000000.0) + " seconds");
       System.out.println("Left channel characteristics:");
 
+      AnalysisConfig config = temporalCharacteristics.getConfig();
       System.out.println("Correlation (same time only):");
-      for (int i = 0; i < Transform.FREQUENCY_RESOLUTION; i += 4) {
-        for (int j = 0; j < Transform.FREQUENCY_RESOLUTION; j += 4) {
-          System.out.print(PrintHelper.format.format(Transform.frequencyAtBin(i)) +
-              " with " + PrintHelper.format.format(Transform.frequencyAtBin(j)) + ": ");
+      for (int i = 0; i < config.getFrequencyResolution(); i += 4) {
+        for (int j = 0; j < config.getFrequencyResolution(); j += 4) {
+          System.out.print(PrintHelper.format.format(config.frequencyAtBin(i)) +
+              " with " + PrintHelper.format.format(config.frequencyAtBin(j)) + ": ");
           System.out.println(PrintHelper.format.format(temporalCharacteristics.getCorrelation(Channel.LEFT)[i][j][0]));
         }
       }
@@ -403,8 +435,8 @@ public class TemporalCharacteristics extends SimpleCharacteristics {
       for (int i = 0; i < bpms.length; i++)
         bpms[i] = RATE_MIN + i;
       PrintHelper.printValues("BPM Matches", bpms);
-      for (int i = 0; i < Transform.FREQUENCY_RESOLUTION; i += 4)
-        PrintHelper.printValues(PrintHelper.format.format(Transform.frequencyAtBin(i)) +
+      for (int i = 0; i < config.getFrequencyResolution(); i += 4)
+        PrintHelper.printValues(PrintHelper.format.format(config.frequencyAtBin(i)) +
             "hz", temporalCharacteristics.getPeakRates(Channel.LEFT)[i]);
     } catch (IOException e) {
       e.printStackTrace();
@@ -1,70 +1,320 @@
 package Backend.Algorithm;
 
 import Backend.Algorithm.Reader.Channel;
+import Backend.Helper.AnalysisExecutor;
 import Backend.Helper.PrintHelper;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ForkJoinPool;
-import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
 
 /**
  * @author Ethan Carnahan
  * Performs a <a href="https://en.wikipedia.org/wiki/Constant-Q_transform">Constant-Q Transform</a> on an audio
  * signal. How to use: Pass in a Reader object to generate the Transform, then use getTransform to
- * get the frequency/amplitude data.
+ * get the frequency/amplitude data. Pass an AnalysisConfig to change the time and frequency resolution,
+ * the constants below are the BALANCED preset's.
  */
 public class Transform {
 
   //region Fields and public methods
-  // The sample rate of the fourier analysis in samples per second.
-  public static final double TIME_RESOLUTION = 40;
-  // There are this many frequency bins between the top/bottom frequency.
-  public static final int FREQUENCY_RESOLUTION = 60; // 10 octaves * 6 bins per octave.
-  // Smaller number = less leaking between frequency bins but takes longer to calculate.
-  private static final double BOTTOM_FILTER_WIDTH = 4;
+  // How the CQT is calculated. DIRECT sums each bin's window in the time domain. FFT takes one FFT per time sample
+  // and multiplies it by each bin's kernel in the frequency domain (Brown and Puckette, 1992), using only the
+  // kernel's non-negligible values. Bins whose window is shorter than their frequency domain kernel stay direct.
+  // FFT's cost doesn't grow with the number of bins, but at 6 bins per octave DIRECT is still faster.
+  // PYRAMID is DIRECT on an OctavePyramid: each bin is summed at the lowest sample rate that still holds it,
+  // so the long windows of low bins take up to 256 times fewer samples. Within PYRAMID_TOLERANCE of DIRECT.
+  public enum Engine {DIRECT, FFT, PYRAMID}
+
+  // Largest difference between FFT and DIRECT engine amplitudes, relative to the loudest amplitude of the transform.
+  // Dropping small kernel values leaks a little of each time sample's loud bins into its other bins.
+  public static final double FFT_TOLERANCE = 1e-3;
+  // Same for the PYRAMID engine. Error comes from what the half-band filters let through or alias.
+  public static final double PYRAMID_TOLERANCE = 1e-2;
   public static final double BOTTOM_FREQUENCY = 20; // Lowest audible pitch in Hz.
   public static final double TOP_FREQUENCY = 20480; // Slightly over highest audible pitch, but is a convenient 20 * 2^10.
   public static final double TOP_BOTTOM_RATIO = TOP_FREQUENCY / BOTTOM_FREQUENCY;
   private static final double TWO_PI = Math.PI * 2.0;
-  private static final float HALF_PI = (float)Math.PI / 2.0f;
-
-  // First dimension is time index, second dimension is frequency index, value is amplitude.
-  private final float[][] leftFrequencyAmplitudes, rightFrequencyAmplitudes;
+  // Sample frames read from a PcmSource at a time.
+  private static final int STREAM_BLOCK_SIZE = 8192;
+  // Seconds of time samples handed to the thread pool at a time while streaming.
+  private static final int STREAM_BATCH_SECONDS = 4;
+
+  private final AnalysisConfig config;
+  private final Spectrogram leftSpectrogram, rightSpectrogram;
+  // [start, end) seconds of audio left out by the SilenceGate or AudioSelection.
+  private final double[][] trimmedSeconds;
+  // Whether audio the spectrogram should have had was left out, see AudioSelection.isApproximate.
+  private final boolean approximate;
+  // Time sample of the spectrogram where each region between trimmed gaps starts.
+  private final int[] regionStarts;
 
   public Transform(Reader audio) {
-    System.out.println("Transform: Running transform on " + (int)audio.getDuration() + " seconds of audio");
+    this(audio, AnalysisConfig.getDefault(), Engine.DIRECT);
+  }
+
+  public Transform(Reader audio, Engine engine) {
+    this(audio, AnalysisConfig.getDefault(), engine);
+  }
+
+  public Transform(Reader audio, AnalysisConfig config) {
+    this(audio, config, Engine.DIRECT);
+  }
+
+  public Transform(Reader audio, AnalysisConfig config, Engine engine) {
+    this(audio, config, engine, null);
+  }
+
+  // Only transforms the time samples selection chooses, or all of them if selection is null.
+  public Transform(Reader audio, AnalysisConfig config, Engine engine, AudioSelection selection) {
+    System.out.println("Transform: Running " + config + " transform on " + (int)audio.getDuration()
+        + " seconds of audio");
+    this.config = config;
+    int sampleRate = audio.getSampleRate();
 
     // Check audio length
-    int timeSamples = (int) (TIME_RESOLUTION * audio.getDuration());
-      if (timeSamples < 1) {
-          throw new IllegalArgumentException(
-              "Transform: Audio file is too short, needs to be at least " + (1 / TIME_RESOLUTION)
-                  + " seconds long.");
-      }
+    int timeSamples = frameCount(config, audio.getChannel(Channel.LEFT).length, sampleRate);
 
     // Perform transform
-    leftFrequencyAmplitudes = multithread_cqt(audio.getChannel(Channel.LEFT), timeSamples,
-        audio.getSampleRate());
-      if (audio.getMode() == Reader.Mode.STEREO) {
-          rightFrequencyAmplitudes = multithread_cqt(audio.getChannel(Channel.RIGHT), timeSamples,
-              audio.getSampleRate());
-      } else {
-          rightFrequencyAmplitudes = null;
+    short[][] channels = (audio.getMode() == Reader.Mode.STEREO)
+        ? new short[][]{audio.getChannel(Channel.LEFT), audio.getChannel(Channel.RIGHT)}
+        : new short[][]{audio.getChannel(Channel.LEFT)};
+    List<int[]> frames = (selection == null) ? List.of(new int[]{0, timeSamples})
+        : soundFrames(selection.select(channels, channels[0].length, sampleRate), config, sampleRate, timeSamples);
+    Spectrogram[] spectrograms = multithread_cqt(config, channels, channels[0].length, frames, sampleRate, engine);
+    leftSpectrogram = spectrograms[0];
+    rightSpectrogram = (channels.length > 1) ? spectrograms[1] : null;
+    trimmedSeconds = trimmedSeconds(frames, config, timeSamples);
+    regionStarts = regionStarts(frames);
+    approximate = selection != null && selection.isApproximate() && trimmedSeconds.length > 0;
+  }
+
+  // Transforms audio while it is still being read from source, so decoding and the transform run at the same time.
+  // Every STREAM_BATCH_SECONDS, the time samples whose windows have been fully read are handed to the thread pool.
+  // Gives the same result as reading the whole file into a Reader first.
+  public Transform(PcmSource source) throws IOException {
+    this(source, AnalysisConfig.getDefault(), Engine.DIRECT);
+  }
+
+  public Transform(PcmSource source, Engine engine) throws IOException {
+    this(source, AnalysisConfig.getDefault(), engine);
+  }
+
+  public Transform(PcmSource source, AnalysisConfig config) throws IOException {
+    this(source, config, Engine.DIRECT);
+  }
+
+  public Transform(PcmSource source, AnalysisConfig config, Engine engine) throws IOException {
+    this(source, config, engine, null);
+  }
+
+  // Time samples are handed over once the gate has decided they are sound, so trimming doesn't wait for the end.
+  public Transform(PcmSource source, AnalysisConfig config, Engine engine, SilenceGate gate) throws IOException {
+    System.out.println("Transform: Running streaming " + config + " transform");
+    this.config = config;
+    int sampleRate = source.getSampleRate();
+    boolean stereo = source.getMode() == Reader.Mode.STEREO;
+    double audioSamplesPerSample = sampleRate / config.getTimeResolution();
+    int streamBatch = (int) (config.getTimeResolution() * STREAM_BATCH_SECONDS);
+    // Longest window reaches this far past its center.
+    int longest = config.windowLength(0, sampleRate);
+    int lookAhead = longest - (longest / 2);
+    if (engine == Engine.PYRAMID) {
+      int levels = pyramidLevel(config, 0, sampleRate);
+      lookAhead += OctavePyramid.margin(levels) + (1 << levels);
+    }
+
+    SampleBuffer audio = new SampleBuffer(stereo, 0);
+    short[] leftBlock = new short[STREAM_BLOCK_SIZE];
+    short[] rightBlock = stereo ? new short[STREAM_BLOCK_SIZE] : null;
+    short[][] block = stereo ? new short[][]{leftBlock, rightBlock} : new short[][]{leftBlock};
+    SilenceGate.Tracker tracker = (gate == null) ? null : gate.track(sampleRate);
+    // Without a gate, everything is sound.
+    List<int[]> sound = List.of(new int[]{0, Integer.MAX_VALUE});
+    // One spectrogram per channel for each batch.
+    List<Spectrogram[]> batches = new ArrayList<>();
+    List<ForkJoinTask<Void>> tasks = new ArrayList<>();
+    int submitted = 0;
+
+    // Every batch goes to the same lane, so the job stays within the executor's cores per job.
+    ForkJoinPool fjp = AnalysisExecutor.getShared().lane();
+    int read;
+    while ((read = source.read(leftBlock, rightBlock, 0, STREAM_BLOCK_SIZE)) != -1) {
+      audio.append(leftBlock, rightBlock, read);
+      int ready = (audio.size() < lookAhead) ? 0 : (int) ((audio.size() - lookAhead) / audioSamplesPerSample) + 1;
+      if (tracker != null) {
+        tracker.append(block, 0, read);
+        sound = soundFrames(tracker.getRegions(), config, sampleRate, Integer.MAX_VALUE);
+        ready = Math.min(ready, firstFrame(tracker.decidedEnd(), audioSamplesPerSample, Integer.MAX_VALUE));
       }
+      for (int[] region : sound) {
+        int start = Math.max(region[0], submitted), end = Math.min(region[1], ready);
+        if (end <= start)
+          continue;
+        // Wait for more of a region that goes on past ready, unless there is a whole batch of it.
+        if (end == ready && end - start < streamBatch)
+          break;
+        // Only samples before audio.size() are read, and those never change, so no copy is needed.
+        tasks.add(fjp.submit(batch(config, audio, sampleRate, start, end, engine, batches)));
+        submitted = end;
+      }
+    }
+
+    // Whole file is read, so the end of the audio can be mirrored now.
+    int timeSamples = frameCount(config, audio.size(), sampleRate);
+    if (tracker != null) {
+      tracker.finish();
+      sound = soundFrames(tracker.getRegions(), config, sampleRate, timeSamples);
+    }
+    List<int[]> frames = new ArrayList<>();
+    for (int[] region : sound) {
+      int end = Math.min(region[1], timeSamples);
+      if (Math.max(region[0], submitted) < end)
+        tasks.add(fjp.submit(batch(config, audio, sampleRate, Math.max(region[0], submitted), end, engine, batches)));
+      if (region[0] < end)
+        frames.add(new int[]{region[0], end});
+    }
+
+    // Putting the batches together only copies references to their rows.
+    for (ForkJoinTask<Void> task : tasks)
+      task.join();
+    leftSpectrogram = joinBatches(batches, 0, config.getFrequencyResolution());
+    rightSpectrogram = stereo ? joinBatches(batches, 1, config.getFrequencyResolution()) : null;
+    trimmedSeconds = trimmedSeconds(frames, config, timeSamples);
+    regionStarts = regionStarts(frames);
+    approximate = false;
+  }
+
+  public AnalysisConfig getConfig() {
+    return config;
+  }
+
+  // [start, end) seconds of audio that were left out by the SilenceGate or AudioSelection, in order.
+  // The spectrogram's time samples skip straight over them. Empty without one.
+  public double[][] getTrimmedSeconds() {
+    return trimmedSeconds;
   }
 
-  // Passing right channel on mono song will return null.
+  // True when only excerpts of the song were transformed.
+  public boolean isApproximate() {
+    return approximate;
+  }
+
+  // Time samples of the spectrogram that come right after a trimmed gap, starting with 0. The difference between
+  // one of these and the time sample before it is a splice, not a change in the song.
+  public int[] getRegionStarts() {
+    return regionStarts;
+  }
+
+  // Passing right channel on mono song will return null. Not a copy.
+  public Spectrogram getSpectrogram(Channel channel) {
+    return (channel == Channel.LEFT) ? leftSpectrogram : rightSpectrogram;
+  }
+
+  // First dimension is time index, second dimension is frequency index, value is amplitude.
+  // Passing right channel on mono song will return null. The spectrogram's own rows, not a copy.
   public float[][] getFrequencyAmplitudes(Channel channel) {
-    return (channel == Channel.LEFT) ? leftFrequencyAmplitudes : rightFrequencyAmplitudes;
+    Spectrogram spectrogram = getSpectrogram(channel);
+    return (spectrogram == null) ? null : spectrogram.getRows();
   }
 
-  // Tells you the frequency of any bin.
-  public static double frequencyAtBin(int index) {
-    return BOTTOM_FREQUENCY * Math.pow(TOP_BOTTOM_RATIO, (double) index / FREQUENCY_RESOLUTION);
+  // Bytes used by the precomputed kernels of every sample rate transformed so far.
+  public static long getKernelBankBytes() {
+    long bytes = 0;
+    for (ConcurrentHashMap<Integer, KernelBank> banks : KernelBank.banks.values())
+      for (KernelBank bank : banks.values())
+        bytes += bank.getBytes();
+    for (ConcurrentHashMap<Integer, SpectralKernelBank> banks : SpectralKernelBank.banks.values())
+      for (SpectralKernelBank bank : banks.values())
+        bytes += bank.getBytes();
+    return bytes;
   }
+
   //endregion
 
   //region CQT multithreaded class and methods
 
+  // Number of time samples for audio of this length.
+  private static int frameCount(AnalysisConfig config, int audioLength, int sampleRate) {
+    int timeSamples = (int) (config.getTimeResolution() * audioLength / sampleRate);
+    if (timeSamples < 1) {
+      throw new IllegalArgumentException(
+          "Transform: Audio file is too short, needs to be at least " + (1 / config.getTimeResolution())
+              + " seconds long.");
+    }
+    return timeSamples;
+  }
+
+  // First time sample whose center is at or after an audio sample.
+  private static int firstFrame(int audioSample, double audioSamplesPerSample, int timeSamples) {
+    return (int) Math.min(timeSamples, Math.ceil(audioSample / audioSamplesPerSample));
+  }
+
+  // Time samples whose centers are in each [start, end) audio sample region. Regions with none are left out.
+  private static List<int[]> soundFrames(List<int[]> regions, AnalysisConfig config, int sampleRate,
+      int timeSamples) {
+    double audioSamplesPerSample = sampleRate / config.getTimeResolution();
+    List<int[]> result = new ArrayList<>(regions.size());
+    for (int[] region : regions) {
+      int start = firstFrame(region[0], audioSamplesPerSample, timeSamples);
+      int end = firstFrame(region[1], audioSamplesPerSample, timeSamples);
+      if (start < end)
+        result.add(new int[]{start, end});
+    }
+    return result;
+  }
+
+  // Seconds between the transformed [start, end) time sample regions.
+  private static double[][] trimmedSeconds(List<int[]> frames, AnalysisConfig config, int timeSamples) {
+    List<double[]> result = new ArrayList<>();
+    int previousEnd = 0;
+    for (int[] region : frames) {
+      if (region[0] > previousEnd)
+        result.add(new double[]{previousEnd / config.getTimeResolution(), region[0] / config.getTimeResolution()});
+      previousEnd = region[1];
+    }
+    if (previousEnd < timeSamples)
+      result.add(new double[]{previousEnd / config.getTimeResolution(), timeSamples / config.getTimeResolution()});
+    return result.toArray(new double[0][]);
+  }
+
+  // Where each region of frames starts once the gaps between them are left out. Regions that touch are one region.
+  private static int[] regionStarts(List<int[]> frames) {
+    int[] result = new int[Math.max(1, frames.size())];
+    int count = 1, length = 0;
+    for (int i = 0; i < frames.size(); i++) {
+      if (i > 0 && frames.get(i)[0] > frames.get(i - 1)[1])
+        result[count++] = length;
+      length += frames.get(i)[1] - frames.get(i)[0];
+    }
+    return Arrays.copyOf(result, count);
+  }
+
+  // Task for time samples [sampleStart, sampleEnd) of every channel of a streaming transform, writing into new
+  // spectrograms that are added to batches in order.
+  private static CQT batch(AnalysisConfig config, SampleBuffer audio, int sampleRate, int sampleStart, int sampleEnd,
+      Engine engine, List<Spectrogram[]> batches) {
+    short[][] channels = audio.isStereo()
+        ? new short[][]{audio.getBuffer(Channel.LEFT), audio.getBuffer(Channel.RIGHT)}
+        : new short[][]{audio.getBuffer(Channel.LEFT)};
+    Spectrogram[] results = new Spectrogram[channels.length];
+    for (int c = 0; c < channels.length; c++)
+      results[c] = new Spectrogram(sampleEnd - sampleStart, config.getFrequencyResolution());
+    batches.add(results);
+    return new CQT(config, channels, audio.size(), sampleRate, sampleStart, sampleEnd, engine, results, sampleStart);
+  }
+
+  private static Spectrogram joinBatches(List<Spectrogram[]> batches, int channel, int bins) {
+    List<Spectrogram> parts = new ArrayList<>(batches.size());
+    for (Spectrogram[] batch : batches)
+      parts.add(batch[channel]);
+    return Spectrogram.concatenate(parts, bins);
+  }
+
   // Virgin Single-threaded CQT
   /*
   private static float[][] cqt(short[] audioSamples, int samples, int sampleRate) {
@@ -89,158 +339,500 @@ public class Transform {
   */
 
   // Chad Multi-threaded CQT
-  private static float[][] multithread_cqt(short[] audioSamples, int samples, int sampleRate) {
-    CQT task = new CQT(audioSamples, sampleRate, samples, 0, samples);
-    try (ForkJoinPool fjp = new ForkJoinPool()) {
-      return fjp.invoke(task);
+  // Both channels of stereo audio are one task, so they share kernel reads and the threads.
+  // Each [start, end) region of time samples is one task, written one after another into the results.
+  private static Spectrogram[] multithread_cqt(AnalysisConfig config, short[][] audioSamples, int audioLength,
+      List<int[]> frames, int sampleRate, Engine engine) {
+    int samples = 0;
+    for (int[] region : frames)
+      samples += region[1] - region[0];
+    Spectrogram[] results = new Spectrogram[audioSamples.length];
+    for (int c = 0; c < audioSamples.length; c++)
+      results[c] = new Spectrogram(samples, config.getFrequencyResolution());
+    CQT[] tasks = new CQT[frames.size()];
+    int row = 0;
+    for (int k = 0; k < tasks.length; k++) {
+      int[] region = frames.get(k);
+      tasks[k] = new CQT(config, audioSamples, audioLength, sampleRate, region[0], region[1], engine, results,
+          region[0] - row);
+      row += region[1] - region[0];
     }
+    AnalysisExecutor.getShared().invokeAll(tasks);
+    return results;
   }
 
-  private static class CQT extends RecursiveTask<float[][]> {
-    private final short[] audioSamples;
-    private final int sampleRate, samples, sampleStart, sampleEnd;
-    // Each thread runs on <1 second of audio.
-    private static final int threshold = (int)TIME_RESOLUTION;
-
-    public CQT(short[] audioSamples, int sampleRate, int samples, int sampleStart, int sampleEnd) {
+  // Writes time samples [sampleStart, sampleEnd) of bins [binStart, binEnd) of every channel into results, with
+  // sampleStart at row sampleStart - resultStart.
+  // The first task converts the audio under all of its windows to one float buffer, with the ends of the audio
+  // already mirrored and room for the kernels' padding. Every task split from it reads that buffer, so the inner
+  // loops need no bounds checks and each sample is only converted once.
+  // Work is split by its cost, the number of samples its windows sum over. Low bins cost about 1000 times more than
+  // high bins, so bins are split where their costs add up to half, not in the middle.
+  private static class CQT extends RecursiveAction {
+    // Each core gets about this many tasks, so cores that finish early can take work from the others.
+    private static final int TASKS_PER_CORE = 8;
+    // Smallest task worth forking, about 3 time samples of every bin at 44.1 kHz.
+    private static final long MIN_TASK_COST = 1 << 18;
+    // Time is split before bins down to this many time samples, so bins of the same time sample stay together.
+    private static final int MIN_TIME_SAMPLES = 8;
+
+    private final AnalysisConfig config;
+    // One array per channel. Only the first audioLength samples are audio, the arrays can be longer.
+    private final short[][] audioSamples;
+    private final int audioLength, sampleRate, sampleStart, sampleEnd, binStart, binEnd;
+    // Tasks are always split down to this many time samples (1 second), so the audio they read stays in cache.
+    private final int maxTimeSamples;
+    private final double audioSamplesPerSample;
+    private final Engine engine;
+    // One per channel.
+    private final Spectrogram[] results;
+    private final int resultStart;
+    // Made by the first task's compute and shared by every task split from it.
+    // Audio sample bufferFirst is at buffers[channel][0]. binCost[j] is the cost of one time sample of bins [0, j)
+    // of every channel.
+    private float[][] buffers;
+    private int bufferFirst;
+    private long[] binCost;
+    private long taskCost;
+
+    public CQT(AnalysisConfig config, short[][] audioSamples, int audioLength, int sampleRate, int sampleStart,
+        int sampleEnd, Engine engine, Spectrogram[] results, int resultStart) {
+      this.config = config;
       this.audioSamples = audioSamples;
+      this.audioLength = audioLength;
       this.sampleRate = sampleRate;
-      this.samples = samples;
+      maxTimeSamples = Math.max(1, (int) config.getTimeResolution());
+      audioSamplesPerSample = sampleRate / config.getTimeResolution();
       this.sampleStart = sampleStart;
       this.sampleEnd = sampleEnd;
+      this.binStart = 0;
+      this.binEnd = config.getFrequencyResolution();
+      this.engine = engine;
+      this.results = results;
+      this.resultStart = resultStart;
+    }
+
+    private CQT(CQT parent, int sampleStart, int sampleEnd, int binStart, int binEnd) {
+      config = parent.config;
+      audioSamples = parent.audioSamples;
+      audioLength = parent.audioLength;
+      sampleRate = parent.sampleRate;
+      maxTimeSamples = parent.maxTimeSamples;
+      audioSamplesPerSample = parent.audioSamplesPerSample;
+      this.sampleStart = sampleStart;
+      this.sampleEnd = sampleEnd;
+      this.binStart = binStart;
+      this.binEnd = binEnd;
+      engine = parent.engine;
+      results = parent.results;
+      resultStart = parent.resultStart;
+      buffers = parent.buffers;
+      bufferFirst = parent.bufferFirst;
+      binCost = parent.binCost;
+      taskCost = parent.taskCost;
     }
 
     @Override
-    protected float[][] compute() {
+    protected void compute() {
+      if (buffers == null) {
+        fillBuffers();
+        binCost = binCost(config, sampleRate, engine, audioSamples.length);
+        int cores = (getPool() == null) ? 1 : getPool().getParallelism();
+        taskCost = Math.max(MIN_TASK_COST, cost() / ((long) cores * TASKS_PER_CORE));
+      }
+
       int length = sampleEnd - sampleStart;
-      if (length <= threshold)
-        return partialCQT();
+      // The FFT engine transforms every bin of a time sample at once, so it is only split by time.
+      boolean splitBins = length <= MIN_TIME_SAMPLES && binEnd - binStart > 1 && engine != Engine.FFT;
+      if ((cost() <= taskCost && length <= maxTimeSamples) || (length == 1 && !splitBins)) {
+        switch (engine) {
+          case DIRECT -> partialCQT();
+          case FFT -> {
+            for (int c = 0; c < buffers.length; c++)
+              partialFftCQT(buffers[c], results[c]);
+          }
+          case PYRAMID -> partialPyramidCQT();
+        }
+        return;
+      }
 
-      CQT firstTask = new CQT(audioSamples, sampleRate, samples,
-          sampleStart, sampleStart + (length / 2));
+      CQT firstTask, secondTask;
+      if (splitBins) {
+        int middle = binStart + 1;
+        long half = (binCost[binStart] + binCost[binEnd]) / 2;
+        while (middle < binEnd - 1 && binCost[middle] < half)
+          middle++;
+        firstTask = new CQT(this, sampleStart, sampleEnd, binStart, middle);
+        secondTask = new CQT(this, sampleStart, sampleEnd, middle, binEnd);
+      } else {
+        firstTask = new CQT(this, sampleStart, sampleStart + (length / 2), binStart, binEnd);
+        secondTask = new CQT(this, sampleStart + (length / 2), sampleEnd, binStart, binEnd);
+      }
       firstTask.fork();
-      CQT secondTask = new CQT(audioSamples, sampleRate, samples, sampleStart + (length / 2),
-          sampleEnd);
-      float[][] secondResult = secondTask.compute();
-      float[][] firstResult = firstTask.join();
+      secondTask.compute();
+      firstTask.join();
+    }
 
-      return joinArrays(firstResult, secondResult);
+    private long cost() {
+      return (sampleEnd - sampleStart) * (binCost[binEnd] - binCost[binStart]);
     }
 
-    private float[][] partialCQT() {
-      int length = sampleEnd - sampleStart;
-      float[][] result = new float[length][FREQUENCY_RESOLUTION];
-      double audioSamplesPerSample = (double) audioSamples.length / samples;
+    // Samples summed for one time sample of each bin, added up so cost[j] covers bins [0, j).
+    private static long[] binCost(AnalysisConfig config, int sampleRate, Engine engine, int channels) {
+      KernelBank kernels = KernelBank.forSampleRate(config, sampleRate);
+      long[] cost = new long[config.getFrequencyResolution() + 1];
+      for (int j = 0; j < config.getFrequencyResolution(); j++) {
+        long binCost = (engine == Engine.PYRAMID) ? kernels.length[j] >> pyramidLevel(config, j, sampleRate)
+            : kernels.cos[j].length;
+        cost[j + 1] = cost[j] + (binCost * channels);
+      }
+      return cost;
+    }
+
+    // Covers the longest window of every time sample plus the kernels' padding, and for PYRAMID the filter
+    // margins and rounding down to a multiple of 2^levels.
+    private void fillBuffers() {
+      int longest = config.windowLength(0, sampleRate);
+      int levels = (engine == Engine.PYRAMID) ? pyramidLevel(config, 0, sampleRate) : 0;
+      int margin = (engine == Engine.PYRAMID) ? OctavePyramid.margin(levels) : 0;
+      int first = (int) (sampleStart * audioSamplesPerSample) - (longest / 2) - margin;
+      bufferFirst = Math.floorDiv(first, 1 << levels) << levels;
+      int end = (int) ((sampleEnd - 1) * audioSamplesPerSample) + longest + margin + Simd.MAX_LANES;
+      buffers = new float[audioSamples.length][];
+      for (int c = 0; c < audioSamples.length; c++)
+        buffers[c] = mirroredBlock(audioSamples[c], audioLength, bufferFirst, end - bufferFirst);
+    }
+
+    // Every channel is done with a bin's kernel before moving on, so each kernel is read from memory once.
+    private void partialCQT() {
+      KernelBank kernels = KernelBank.forSampleRate(config, sampleRate);
+      boolean simd = Simd.isEnabled();
 
       // for each frequency bin
-      for (int j = 0; j < FREQUENCY_RESOLUTION; j++) {
-        double frequency = frequencyAtBin(j);
-        int windowLength = windowLength(j, sampleRate);
+      for (int j = binStart; j < binEnd; j++) {
+        float[] cos = kernels.cos[j], sin = kernels.sin[j];
+        int windowLength = kernels.length[j];
         // for each time sample
         for (int i = sampleStart; i < sampleEnd; i++) {
           int audioCenter = (int) (i * audioSamplesPerSample);
-          int audioStart = audioCenter - (windowLength / 2);
-          result[i - sampleStart][j] = transform(audioSamples, audioStart, windowLength, frequency, sampleRate) / windowLength;
+          int start = audioCenter - (windowLength / 2) - bufferFirst;
+          for (int c = 0; c < buffers.length; c++)
+            results[c].set(i - resultStart, j, simd ? Simd.transform(buffers[c], start, cos, sin)
+                : transform(buffers[c], start, cos, sin, windowLength));
         }
       }
-
-      return result;
     }
 
-    private static float[][] joinArrays(float[][] a, float[][] b) {
-      float[][] result = new float[a.length + b.length][a[0].length];
+    // Decimates the audio under this batch's windows, then sums each bin at its own pyramid level.
+    private void partialPyramidCQT() {
+      int levels = pyramidLevel(config, 0, sampleRate);
+      int longest = config.windowLength(0, sampleRate);
+      int margin = OctavePyramid.margin(levels);
+
+      // Start on a multiple of 2^levels so every batch decimates the same samples.
+      int first = (int) (sampleStart * audioSamplesPerSample) - (longest / 2) - margin;
+      first = Math.floorDiv(first, 1 << levels) << levels;
+      int last = (int) ((sampleEnd - 1) * audioSamplesPerSample) + longest + margin;
+      // Lowest bin needs the most levels.
+      OctavePyramid[] pyramids = new OctavePyramid[buffers.length];
+      for (int c = 0; c < buffers.length; c++)
+        pyramids[c] = new OctavePyramid(buffers[c], first - bufferFirst, last - first,
+            pyramidLevel(config, binStart, sampleRate));
+
+      KernelBank kernels = KernelBank.forSampleRate(config, sampleRate);
+      for (int j = binStart; j < binEnd; j++) {
+        int level = pyramidLevel(config, j, sampleRate);
+        float[] cos = kernels.cos[j], sin = kernels.sin[j];
+        int windowLength = kernels.length[j];
+        int offset = pyramids[0].getOffset(level);
+        for (int i = sampleStart; i < sampleEnd; i++) {
+          // First sample of the level inside the window, and where it is in the full rate kernel.
+          int windowStart = (int) (i * audioSamplesPerSample) - (windowLength / 2) - first;
+          int start = (windowStart + (1 << level) - 1) >> level;
+          int phase = (start << level) - windowStart;
+          for (int c = 0; c < buffers.length; c++)
+            results[c].set(i - resultStart, j,
+                transform(pyramids[c].getLevel(level), offset + start, cos, sin, windowLength, phase, level));
+        }
+      }
+    }
 
-      for (int i = 0; i < a.length; i++)
-        System.arraycopy(a[i], 0, result[i], 0, a[0].length);
-      for (int i = 0; i < b.length; i++)
-        System.arraycopy(b[i], 0, result[i + a.length], 0, b[0].length);
+    // Two time samples share each FFT: one goes in the real part and one in the imaginary part,
+    // and their spectra are separated again using the symmetry of real signals' spectra.
+    private void partialFftCQT(float[] buffer, Spectrogram result) {
+      KernelBank kernels = KernelBank.forSampleRate(config, sampleRate);
+      SpectralKernelBank spectralKernels = SpectralKernelBank.forSampleRate(config, sampleRate);
+      FFT fft = FFT.forSize(spectralKernels.fftSize);
+      int fftSize = spectralKernels.fftSize, mask = fftSize - 1;
+      double[] real = new double[fftSize], imaginary = new double[fftSize];
+
+      for (int i = sampleStart; i < sampleEnd; i += 2) {
+        boolean pair = i + 1 < sampleEnd;
+        fillFftFrame(real, buffer, i);
+        if (pair)
+          fillFftFrame(imaginary, buffer, i + 1);
+        else
+          Arrays.fill(imaginary, 0.0);
+        fft.transform(real, imaginary);
+
+        for (int j = 0; j < config.getFrequencyResolution(); j++) {
+          int[] index = spectralKernels.index[j];
+          if (index == null) {
+            // Short window, cheaper to sum directly.
+            float[] cos = kernels.cos[j], sin = kernels.sin[j];
+            int windowLength = kernels.length[j];
+            for (int frame = i; frame < i + (pair ? 2 : 1); frame++) {
+              int start = (int) (frame * audioSamplesPerSample) - (windowLength / 2) - bufferFirst;
+              result.set(frame - resultStart, j, transform(buffer, start, cos, sin, windowLength));
+            }
+            continue;
+          }
+
+          float[] kernelReal = spectralKernels.real[j], kernelImaginary = spectralKernels.imaginary[j];
+          double firstReal = 0.0, firstImaginary = 0.0, secondReal = 0.0, secondImaginary = 0.0;
+          for (int k = 0; k < index.length; k++) {
+            int a = index[k], b = (fftSize - a) & mask;
+            // Spectrum of the first time sample is (Z[a] + conj(Z[-a])) / 2, second is (Z[a] - conj(Z[-a])) / 2i.
+            double firstR = real[a] + real[b], firstI = imaginary[a] - imaginary[b];
+            double secondR = imaginary[a] + imaginary[b], secondI = real[b] - real[a];
+            firstReal += (firstR * kernelReal[k]) - (firstI * kernelImaginary[k]);
+            firstImaginary += (firstR * kernelImaginary[k]) + (firstI * kernelReal[k]);
+            secondReal += (secondR * kernelReal[k]) - (secondI * kernelImaginary[k]);
+            secondImaginary += (secondR * kernelImaginary[k]) + (secondI * kernelReal[k]);
+          }
+          result.set(i - resultStart, j,
+              (float) (Math.sqrt((firstReal * firstReal) + (firstImaginary * firstImaginary)) / 2));
+          if (pair)
+            result.set(i + 1 - resultStart, j,
+                (float) (Math.sqrt((secondReal * secondReal) + (secondImaginary * secondImaginary)) / 2));
+        }
+      }
+    }
 
-      return result;
+    // Copies the audio under the longest window of a time sample into the middle of the FFT frame.
+    // Every other bin's window is inside that range, so the rest of the frame is left as zeros.
+    private void fillFftFrame(double[] frame, float[] buffer, int timeSample) {
+      int fftSize = frame.length;
+      int longest = config.windowLength(0, sampleRate);
+      int frameStart = (int) (timeSample * audioSamplesPerSample) - (fftSize / 2);
+      int from = (fftSize / 2) - (longest / 2), to = from + longest;
+      Arrays.fill(frame, 0, from, 0.0);
+      Arrays.fill(frame, to, fftSize, 0.0);
+      for (int i = from; i < to; i++)
+        frame[i] = buffer[frameStart + i - bufferFirst];
     }
   }
 
-  // Performs transform for a specific frequency and time period.
-  private static float transform(short[] audioSamples, int start, int length, double frequency, int sampleRate) {
-    double realSum = 0.0, complexSum = 0.0;
-
-    int end = start + length;
-    for (int i = start; i < end; i++) {
-      double angle = (i - start) * TWO_PI * frequency / sampleRate;
-      double window = window(i - start, length);
-      short sample = mirrorBounds(audioSamples, i);
-      realSum += window * sample * FasterTrig.cos(angle);
-      complexSum += window * sample * FasterTrig.sin(angle);
+  // Performs transform for one frequency bin's kernel starting at samples[start], which must cover the whole window.
+  // Sums in floats like SimdKernels, so results don't depend on whether the Vector API is there.
+  private static float transform(float[] samples, int start, float[] cos, float[] sin, int length) {
+    float realSum = 0.0f, complexSum = 0.0f;
+    for (int i = 0; i < length; i++) {
+      realSum += cos[i] * samples[start + i];
+      complexSum += sin[i] * samples[start + i];
     }
-
     return (float) Math.sqrt((realSum * realSum) + (complexSum * complexSum));
   }
 
-  private static int windowLength(int frequencyBin, int sampleRate) {
-    return (int)Math.ceil(sampleRate / filterWidth(frequencyBin));
+  // Same as the other transform, on audio that has been halved level times. Uses every 2^level'th value of the
+  // full rate kernel starting at phase, so windows stay exactly where they are at the full sample rate.
+  private static float transform(float[] samples, int start, float[] cos, float[] sin, int length, int phase,
+      int level) {
+    double realSum = 0.0, complexSum = 0.0;
+    int step = 1 << level;
+    for (int i = phase, j = start; i < length; i += step, j++) {
+      realSum += cos[i] * samples[j];
+      complexSum += sin[i] * samples[j];
+    }
+    return (float) (Math.sqrt((realSum * realSum) + (complexSum * complexSum)) * step);
   }
 
-  private static double filterWidth(int frequencyBin) {
-    return BOTTOM_FILTER_WIDTH * Math.pow(TOP_BOTTOM_RATIO, (double)frequencyBin / FREQUENCY_RESOLUTION);
+  // Number of times the audio can be halved before a bin's kernel gets too close to the reduced Nyquist frequency.
+  // The kernel's main lobe reaches 4 filter widths past the bin's frequency, and OctavePyramid only keeps
+  // frequencies below half of each level's Nyquist frequency unchanged.
+  private static int pyramidLevel(AnalysisConfig config, int frequencyBin, int sampleRate) {
+    double passband = config.frequencyAtBin(frequencyBin) + (4 * config.filterWidth(frequencyBin));
+    int level = 0;
+    while (sampleRate / (2.0 * (1 << (level + 1))) >= 2 * passband)
+      level++;
+    return level;
   }
 
   // Nuttall window.
   // See https://en.wikipedia.org/wiki/Window_function#Nuttall_window,_continuous_first_derivative
   public static double window(int index, int length) {
-    double angle = TWO_PI * index / length;
-    return ((0.355768) - (0.4891775 * FasterTrig.cos(angle)) + (0.1365995 * FasterTrig.cos(2 * angle)) -
-        (0.0106411 * FasterTrig.cos(3 * angle))) / 0.355768;
+    return nuttall(Math.cos(TWO_PI * index / length));
   }
 
-  // Allows you to go out of bounds by mirroring the index back in-bounds and inverting the sample value.
-  // Just make sure you don't go double out of bounds.
-  private static short mirrorBounds(short[] audioSamples, int index) {
-    if (index >= 0 && index < audioSamples.length) {
-      return audioSamples[index];
-    }
-    if (index < 0) {
-      return (short) (-audioSamples[-index] & 0xFFFF);
-    } else {
-      return (short) (-audioSamples[(2 * audioSamples.length) - index - 2] & 0xFFFF);
+  // Nuttall window from the cosine of its angle, using cos(2a) = 2cos^2(a) - 1 and cos(3a) = 4cos^3(a) - 3cos(a).
+  private static double nuttall(double cos) {
+    double cos2 = (2 * cos * cos) - 1, cos3 = ((4 * cos * cos) - 3) * cos;
+    return ((0.355768) - (0.4891775 * cos) + (0.1365995 * cos2) - (0.0106411 * cos3)) / 0.355768;
+  }
+
+  // Copies audio samples [first, first + length) to floats. Past the ends of the audio, samples are mirrored back
+  // in and inverted, so the audio continues smoothly. Samples that even mirroring doesn't reach are 0.
+  static float[] mirroredBlock(short[] audioSamples, int audioLength, int first, int length) {
+    float[] block = new float[length];
+    int inside = Math.max(0, Math.min(first + length, audioLength) - Math.max(first, 0));
+    int insideStart = Math.max(first, 0);
+    for (int i = 0; i < inside; i++)
+      block[insideStart - first + i] = audioSamples[insideStart + i];
+    for (int i = 0; i < length; i++) {
+      int index = first + i;
+      if (index >= 0 && index < audioLength)
+        continue;
+      int mirrored = (index < 0) ? -index : (2 * audioLength) - index - 2;
+      if (mirrored >= 0 && mirrored < audioLength)
+        block[i] = (short) -audioSamples[mirrored];
     }
+    return block;
   }
 
-  // Precalculate lots of sine/cosine values to reduce math to array lookups.
-  private static class FasterTrig {
-    // Higher number = more accurate but uses more memory.
-    private static final int ANGLE_RESOLUTION = 10000; // 4kB.
-    private static final float[] angleValues = generateAngleValues();
+  // Windowed cosine/sine kernel of every frequency bin for one config and sample rate, divided by the window length.
+  // Kernels only depend on those, so they are made once and shared by every frame of every song.
+  // The carrier and window come straight from Math.cos/Math.sin. The lookup table used before was only within 6e-4,
+  // and since each bank is made once, the exact values cost a few milliseconds per config and sample rate.
+  // Padded with zeros to a multiple of Simd.MAX_LANES for the vector loops.
+  private static class KernelBank {
+    // By config, then sample rate.
+    private static final ConcurrentHashMap<AnalysisConfig, ConcurrentHashMap<Integer, KernelBank>> banks =
+        new ConcurrentHashMap<>();
+
+    // First dimension is frequency bin, second is index in the window.
+    private final float[][] cos, sin;
+    // Window length of each frequency bin, without the padding.
+    private final int[] length;
+
+    private KernelBank(AnalysisConfig config, int sampleRate) {
+      int bins = config.getFrequencyResolution();
+      cos = new float[bins][];
+      sin = new float[bins][];
+      length = new int[bins];
+      for (int j = 0; j < bins; j++) {
+        double frequency = config.frequencyAtBin(j);
+        length[j] = config.windowLength(j, sampleRate);
+        cos[j] = new float[Simd.padded(length[j])];
+        sin[j] = new float[Simd.padded(length[j])];
+        double step = TWO_PI * frequency / sampleRate;
+        for (int i = 0; i < length[j]; i++) {
+          double window = window(i, length[j]) / length[j];
+          cos[j][i] = (float) (window * Math.cos(i * step));
+          sin[j][i] = (float) (window * Math.sin(i * step));
+        }
+      }
+    }
 
-    private static float sin(double radians) {
-      int index = (int)(radians * ANGLE_RESOLUTION / TWO_PI) % ANGLE_RESOLUTION;
-      return angleValues[index];
+    private static KernelBank forSampleRate(AnalysisConfig config, int sampleRate) {
+      return banks.computeIfAbsent(config, key -> new ConcurrentHashMap<>())
+          .computeIfAbsent(sampleRate, key -> new KernelBank(config, sampleRate));
     }
 
-    private static float cos(double radians) {
-      return sin(radians + HALF_PI);
+    private long getBytes() {
+      long bytes = 0;
+      for (int j = 0; j < cos.length; j++)
+        bytes += (long) (cos[j].length + sin[j].length) * Float.BYTES;
+      return bytes;
     }
+  }
 
-    private static float[] generateAngleValues() {
-      float[] result = new float[ANGLE_RESOLUTION];
-      for (int i = 0; i < ANGLE_RESOLUTION; i++)
-        result[i] = (float)Math.sin(TWO_PI * i / ANGLE_RESOLUTION);
-      return result;
+  // Frequency domain version of KernelBank for the FFT engine. Each bin's windowed kernel is placed in the middle
+  // of an FFT-sized frame and transformed, and only values above SPARSE_THRESHOLD of the largest are kept.
+  // Bins whose kernel would have more values than their window has samples are left null and done directly.
+  private static class SpectralKernelBank {
+    private static final ConcurrentHashMap<AnalysisConfig, ConcurrentHashMap<Integer, SpectralKernelBank>> banks =
+        new ConcurrentHashMap<>();
+    private static final double SPARSE_THRESHOLD = 1e-4;
+
+    private final int fftSize;
+    // First dimension is frequency bin, second is the kernel's non-negligible values and where they are.
+    private final int[][] index;
+    private final float[][] real, imaginary;
+
+    private SpectralKernelBank(AnalysisConfig config, int sampleRate) {
+      KernelBank kernels = KernelBank.forSampleRate(config, sampleRate);
+      int bins = config.getFrequencyResolution();
+      fftSize = Integer.highestOneBit(config.windowLength(0, sampleRate) - 1) * 2;
+      FFT fft = FFT.forSize(fftSize);
+      index = new int[bins][];
+      real = new float[bins][];
+      imaginary = new float[bins][];
+
+      double[] kernelReal = new double[fftSize], kernelImaginary = new double[fftSize];
+      for (int j = 0; j < bins; j++) {
+        float[] cos = kernels.cos[j], sin = kernels.sin[j];
+        int length = kernels.length[j];
+        Arrays.fill(kernelReal, 0.0);
+        Arrays.fill(kernelImaginary, 0.0);
+        int start = (fftSize / 2) - (length / 2);
+        for (int i = 0; i < length; i++) {
+          kernelReal[start + i] = cos[i];
+          kernelImaginary[start + i] = sin[i];
+        }
+        fft.transform(kernelReal, kernelImaginary);
+
+        // sum of x[n] * k[n] = sum of X[f] * K[-f] / fftSize, so store K[-f] / fftSize at f.
+        double max = 0.0;
+        for (int f = 0; f < fftSize; f++)
+          max = Math.max(max, Math.hypot(kernelReal[f], kernelImaginary[f]));
+        int count = 0;
+        for (int f = 0; f < fftSize; f++)
+          if (Math.hypot(kernelReal[f], kernelImaginary[f]) >= max * SPARSE_THRESHOLD)
+            count++;
+        if (count >= length)
+          continue;
+
+        index[j] = new int[count];
+        real[j] = new float[count];
+        imaginary[j] = new float[count];
+        int k = 0;
+        for (int f = 0; f < fftSize; f++) {
+          if (Math.hypot(kernelReal[f], kernelImaginary[f]) < max * SPARSE_THRESHOLD)
+            continue;
+          int negative = (fftSize - f) & (fftSize - 1);
+          index[j][k] = negative;
+          real[j][k] = (float) (kernelReal[f] / fftSize);
+          imaginary[j][k] = (float) (kernelImaginary[f] / fftSize);
+          k++;
+        }
+      }
+    }
+
+    private static SpectralKernelBank forSampleRate(AnalysisConfig config, int sampleRate) {
+      return banks.computeIfAbsent(config, key -> new ConcurrentHashMap<>())
+          .computeIfAbsent(sampleRate, key -> new SpectralKernelBank(config, sampleRate));
+    }
+
+    private long getBytes() {
+      long bytes = 0;
+      for (int j = 0; j < index.length; j++)
+        if (index[j] != null)
+          bytes += (long) index[j].length * (Integer.BYTES + (2 * Float.BYTES));
+      return bytes;
     }
   }
   //endregion
 
-  // Prints the frequency/amplitude information of the audio file in args[0]
+  // Prints the frequency/amplitude information of the audio file in args[0], using the engine in args[1] and the
+  // preset in args[2] if given.
   public static void main(String[] args) {
     try {
       Reader reader = Reader.readFile(args[0]);
+      Engine engine = (args.length > 1) ? Engine.valueOf(args[1]) : Engine.DIRECT;
+      AnalysisConfig config = (args.length > 2) ? AnalysisConfig.preset(args[2]) : AnalysisConfig.getDefault();
       long startTime = System.nanoTime();
-      Transform transform = new Transform(reader);
+      Transform transform = new Transform(reader, config, engine);
       System.out.println("Calculation time: " + ((System.nanoTime() - startTime) / 1000000000.0) + " seconds");
+      System.out.println("Kernel bank size: " + (getKernelBankBytes() / 1024) + " kB");
 
       System.out.println("Left channel frequency analysis:");
-      PrintHelper.printFrequencies();
-      float[][] left = transform.getFrequencyAmplitudes(Channel.LEFT);
-      for (int i = 0; i < left.length; i += TIME_RESOLUTION)
-        PrintHelper.printValues("T = " + PrintHelper.format.format(i / TIME_RESOLUTION), left[i]);
+      PrintHelper.printFrequencies(config);
+      Spectrogram left = transform.getSpectrogram(Channel.LEFT);
+      float[] row = new float[config.getFrequencyResolution()];
+      for (int i = 0; i < left.getFrameCount(); i += config.getTimeResolution()) {
+        left.getFrame(i, row);
+        PrintHelper.printValues("T = " + PrintHelper.format.format(i / config.getTimeResolution()), row);
+      }
 
     } catch (IOException e) {
       System.out.println(e.getMessage());
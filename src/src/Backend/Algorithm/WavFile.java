@@ -0,0 +1,198 @@
+package Backend.Algorithm;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Reads 16-bit PCM .wav files without going through javax.sound.
+ * Parses the RIFF header itself and memory-maps the data chunk, so samples are copied only once:
+ * from the mapped file straight into the left/right sample arrays.
+ * How to use: Call open, check isSupported, then call read for any range of sample frames, and close when done.
+ * The data chunk is mapped on the first read and stays mapped until close, so reads don't touch the file system.
+ */
+public class WavFile implements Closeable {
+  private static final int WAVE_FORMAT_PCM = 0x0001;
+  private static final int WAVE_FORMAT_EXTENSIBLE = 0xFFFE;
+  // A single mapping can't be larger than this, so long files are mapped in pieces.
+  private static final long MAX_MAP_SIZE = Integer.MAX_VALUE & ~0xF;
+  // Stereo samples are copied out of the mapping this many frames at a time before being de-interleaved.
+  private static final int DEINTERLEAVE_FRAMES = 4096;
+
+  private final FileChannel channel;
+  private final int formatCode, channels, sampleRate, bitDepth, blockAlign;
+  private final long dataOffset, frames;
+  // Pieces of the mapped data chunk, each framesPerMap frames long except the last. Null until the first read.
+  private ShortBuffer[] maps;
+  private long framesPerMap;
+
+  private WavFile(FileChannel channel, int formatCode, int channels, int sampleRate, int bitDepth, int blockAlign,
+      long dataOffset, long frames) {
+    this.channel = channel;
+    this.formatCode = formatCode;
+    this.channels = channels;
+    this.sampleRate = sampleRate;
+    this.bitDepth = bitDepth;
+    this.blockAlign = blockAlign;
+    this.dataOffset = dataOffset;
+    this.frames = frames;
+  }
+
+  // Reads the RIFF header and finds the fmt and data chunks. The file stays open until close.
+  public static WavFile open(String filepath) throws IOException {
+    Path path = Paths.get(filepath);
+    FileChannel channel = FileChannel.open(path, StandardOpenOption.READ);
+    try {
+      long fileSize = channel.size();
+      ByteBuffer header = ByteBuffer.allocate(12).order(ByteOrder.LITTLE_ENDIAN);
+      readFully(channel, header, 0);
+      if (header.getInt(0) != fourCC("RIFF") || header.getInt(8) != fourCC("WAVE"))
+        throw new IOException("WavFile: Not a RIFF/WAVE file.");
+
+      int formatCode = -1, channels = 0, sampleRate = 0, bitDepth = 0, blockAlign = 0;
+      long position = 12;
+      ByteBuffer chunkHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+      while (position + 8 <= fileSize) {
+        chunkHeader.clear();
+        readFully(channel, chunkHeader, position);
+        int id = chunkHeader.getInt(0);
+        long size = Integer.toUnsignedLong(chunkHeader.getInt(4));
+        long body = position + 8;
+
+        if (id == fourCC("fmt ")) {
+          if (size < 16)
+            throw new IOException("WavFile: fmt chunk is too short.");
+          ByteBuffer fmt = ByteBuffer.allocate((int) Math.min(size, 40)).order(ByteOrder.LITTLE_ENDIAN);
+          readFully(channel, fmt, body);
+          formatCode = fmt.getShort(0) & 0xFFFF;
+          channels = fmt.getShort(2) & 0xFFFF;
+          sampleRate = fmt.getInt(4);
+          blockAlign = fmt.getShort(12) & 0xFFFF;
+          bitDepth = fmt.getShort(14) & 0xFFFF;
+          // The real format code of WAVE_FORMAT_EXTENSIBLE is at the start of the sub-format GUID.
+          if (formatCode == WAVE_FORMAT_EXTENSIBLE && fmt.capacity() >= 26)
+            formatCode = fmt.getShort(24) & 0xFFFF;
+        } else if (id == fourCC("data")) {
+          if (formatCode == -1)
+            throw new IOException("WavFile: data chunk comes before fmt chunk.");
+          // Some writers leave the size at 0 or 0xFFFFFFFF when streaming, so trust the file size instead.
+          long available = fileSize - body;
+          if (size == 0 || size > available)
+            size = available;
+          long frames = (blockAlign == 0) ? 0 : size / blockAlign;
+          return new WavFile(channel, formatCode, channels, sampleRate, bitDepth, blockAlign, body, frames);
+        }
+
+        // Chunks are padded to an even number of bytes.
+        position = body + size + (size & 1);
+      }
+      throw new IOException("WavFile: No data chunk found.");
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  // True if read can handle this file. Other files have to go through javax.sound.
+  public boolean isSupported() {
+    return formatCode == WAVE_FORMAT_PCM && bitDepth == 16 && (channels == 1 || channels == 2)
+        && blockAlign == channels * 2;
+  }
+
+  public int getChannels() {
+    return channels;
+  }
+
+  public int getSampleRate() {
+    return sampleRate;
+  }
+
+  public int getBitDepth() {
+    return bitDepth;
+  }
+
+  public long getFrames() {
+    return frames;
+  }
+
+  // Copies frames [firstFrame, firstFrame + length) into left/right starting at offset, de-interleaving
+  // directly out of the mapped file. right is ignored for mono files.
+  public synchronized void read(long firstFrame, int length, short[] left, short[] right, int offset)
+      throws IOException {
+    if (!isSupported())
+      throw new IllegalStateException("WavFile: Can't read " + bitDepth + "-bit, " + channels
+          + "-channel audio with format " + formatCode);
+    if (firstFrame < 0 || firstFrame + length > frames)
+      throw new IndexOutOfBoundsException("WavFile: Frames " + firstFrame + " to " + (firstFrame + length)
+          + " are outside of 0 to " + frames);
+
+    if (maps == null)
+      map();
+
+    short[] interleaved = (channels == 2) ? new short[2 * Math.min(length, DEINTERLEAVE_FRAMES)] : null;
+    while (length > 0) {
+      ShortBuffer samples = maps[(int) (firstFrame / framesPerMap)];
+      int mapFirst = (int) (firstFrame % framesPerMap);
+      int mapFrames = (int) Math.min(length, framesPerMap - mapFirst);
+
+      if (channels == 1) {
+        samples.get(mapFirst, left, offset, mapFrames);
+      } else {
+        for (int done = 0; done < mapFrames; ) {
+          int count = Math.min(mapFrames - done, DEINTERLEAVE_FRAMES);
+          samples.get(2 * (mapFirst + done), interleaved, 0, 2 * count);
+          for (int i = 0, j = offset + done; i < count; i++, j++) {
+            left[j] = interleaved[2 * i];
+            right[j] = interleaved[(2 * i) + 1];
+          }
+          done += count;
+        }
+      }
+
+      firstFrame += mapFrames;
+      offset += mapFrames;
+      length -= mapFrames;
+    }
+  }
+
+  // Releases the file. The mapping itself goes away once it is garbage collected.
+  @Override
+  public synchronized void close() throws IOException {
+    maps = null;
+    channel.close();
+  }
+
+  private void map() throws IOException {
+    if (!channel.isOpen())
+      throw new IOException("WavFile: File is closed.");
+    framesPerMap = MAX_MAP_SIZE / blockAlign;
+    int count = (int) Math.max(1, (frames + framesPerMap - 1) / framesPerMap);
+    ShortBuffer[] mapped = new ShortBuffer[count];
+    for (int i = 0; i < count; i++) {
+      long first = i * framesPerMap;
+      long size = Math.min(framesPerMap, frames - first) * blockAlign;
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, dataOffset + (first * blockAlign), size);
+      mapped[i] = buffer.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer();
+    }
+    maps = mapped;
+  }
+
+  private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position + buffer.position());
+      if (read < 0)
+        throw new IOException("WavFile: Unexpected end of file.");
+    }
+  }
+
+  private static int fourCC(String id) {
+    return (id.charAt(0)) | (id.charAt(1) << 8) | (id.charAt(2) << 16) | (id.charAt(3) << 24);
+  }
+}
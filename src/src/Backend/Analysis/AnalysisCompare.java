@@ -1,5 +1,6 @@
 package Backend.Analysis;
 
+import Backend.Helper.AnalysisExecutor;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -7,7 +8,6 @@ import java.util.Comparator;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Set;
-import java.util.concurrent.ForkJoinPool;
 import java.util.concurrent.RecursiveTask;
 
 /**
@@ -30,9 +30,7 @@ public class AnalysisCompare {
     // gather results
     List<CompareResult> result;
     AllAnalysesTask task = new AllAnalysesTask(analyses, 0, analyses.size());
-    try (ForkJoinPool fjp = new ForkJoinPool()) {
-      result = fjp.invoke(task);
-    }
+    result = AnalysisExecutor.getShared().invoke(task);
 
     // sort results
     result.sort(Comparator.comparingDouble(o -> o.result));
@@ -81,9 +79,7 @@ public class AnalysisCompare {
     // gather results
     List<CompareResult> result;
     TheseToThoseTask task = new TheseToThoseTask(userAnalyses, compareTo, 0, compareTo.size());
-    try (ForkJoinPool fjp = new ForkJoinPool()) {
-      result = fjp.invoke(task);
-    }
+    result = AnalysisExecutor.getShared().invoke(task);
 
     // sort results
     result.sort(Comparator.comparingDouble(o -> o.result));
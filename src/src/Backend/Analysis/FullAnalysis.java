@@ -1,8 +1,13 @@
 package Backend.Analysis;
 
+import Backend.Algorithm.AnalysisConfig;
+import Backend.Algorithm.Excerpts;
 import Backend.Algorithm.Normalizer;
+import Backend.Algorithm.PcmSource;
 import Backend.Algorithm.Reader;
 import Backend.Algorithm.Reader.Channel;
+import Backend.Algorithm.Resampler;
+import Backend.Algorithm.SilenceGate;
 import Backend.Algorithm.TemporalCharacteristics;
 import Backend.Algorithm.Transform;
 import Backend.Analysis.AnalysisCompare.CompareResult;
@@ -29,16 +34,38 @@ public class FullAnalysis implements SoundAnalysis {
   private static final double ARCTAN_MULTIPLIER = 2.0 / Math.PI;
 
   public FullAnalysis(String filePath, boolean load, boolean save) throws IOException {
+    this(filePath, load, save, AnalysisConfig.getDefault());
+  }
+
+  // New analyses use config. Loaded analyses keep the config they were saved with.
+  public FullAnalysis(String filePath, boolean load, boolean save, AnalysisConfig config) throws IOException {
+    this(filePath, load, save, config, false);
+  }
+
+  // A preview only analyses Excerpts.DEFAULT of the song, and its characteristics are approximate. Loading without
+  // preview analyses the whole song again if the saved analysis was a preview, so a later full analysis upgrades it.
+  public FullAnalysis(String filePath, boolean load, boolean save, AnalysisConfig config, boolean preview)
+      throws IOException {
+    this(filePath, load, save, config, preview, null);
+  }
+
+  // gate leaves silence out of a new analysis of the whole song, such as SilenceGate.DEFAULT, or null to analyse all
+  // of it. Previews and loaded analyses ignore it.
+  public FullAnalysis(String filePath, boolean load, boolean save, AnalysisConfig config, boolean preview,
+      SilenceGate gate) throws IOException {
     this.filePath = filePath;
 
     Path path;
     String savePath;
+    // Saved analyses can't be analysed again, so they're used even if approximate.
+    boolean saved = false;
     try {
       path = Paths.get(filePath);
       this.fileName = path.getFileName().toString();
-      if(filePath.contains("\\SavedAnalysis\\") && filePath.contains(".tem"))
+      if(filePath.contains("\\SavedAnalysis\\") && filePath.contains(".tem")) {
         savePath = filePath.substring(0, filePath.length()-4);
-      else
+        saved = true;
+      } else
         savePath = System.getProperty("user.dir") + "\\SavedAnalysis\\" + fileName;
       path = Paths.get(savePath);
     } catch (InvalidPathException e) {
@@ -48,17 +75,30 @@ public class FullAnalysis implements SoundAnalysis {
     if (load) {
       System.out.println("FullAnalysis: Loading analysis for " + fileName);
       try {
-        this.characteristics = TemporalCharacteristics.load(savePath);
-        return;
+        TemporalCharacteristics loaded = TemporalCharacteristics.load(savePath);
+        if (!loaded.isApproximate() || preview || saved) {
+          this.characteristics = loaded;
+          return;
+        }
+        System.out.println("FullAnalysis: Saved analysis is a preview, analysing whole song");
       } catch (IOException e) {
         System.out.println("FullAnalysis: Failed to load file - " + e.getMessage());
       }
     }
 
-    System.out.println("FullAnalysis: Analysing new song " + fileName);
-    Reader reader = Reader.readFile(filePath);
-    Transform transform = new Transform(reader);
-    Normalizer normalizer = new Normalizer(transform);
+    System.out.println("FullAnalysis: Analysing new " + (preview ? "preview of " : "") + "song " + fileName);
+    Transform transform;
+    if (preview) {
+      // Excerpts are chosen from the song's length, so it has to be decoded first.
+      Reader reader = Reader.readFile(filePath).canonical();
+      transform = new Transform(reader, config, Transform.Engine.DIRECT, Excerpts.DEFAULT);
+    } else {
+      // Decode and transform at the same time.
+      try (PcmSource source = Resampler.canonical(Reader.openStream(filePath))) {
+        transform = new Transform(source, config, Transform.Engine.DIRECT, gate);
+      }
+    }
+    Normalizer normalizer = new Normalizer(transform, true);
     this.characteristics = new TemporalCharacteristics(normalizer);
     if (save) {
       System.out.println("FullAnalysis: Saving analysis to " + savePath);
@@ -97,6 +137,10 @@ public class FullAnalysis implements SoundAnalysis {
     double[][] otherLeftPeakRates = otherFull.characteristics.getPeakRates(Channel.LEFT);
     double[][] otherRightPeakRates = otherFull.characteristics.getPeakRates(Channel.RIGHT);
 
+    if (!this.characteristics.getConfig().equals(otherFull.characteristics.getConfig()))
+      throw new IllegalArgumentException("FullAnalysis: Can't compare a " + this.characteristics.getConfig() + " analysis to a "
+          + otherFull.characteristics.getConfig() + " one, analyse both with the same preset.");
+
     System.out.println("FullAnalysis: Comparing " + this.fileName + " to " + otherFull.fileName);
 
     // if both stereo
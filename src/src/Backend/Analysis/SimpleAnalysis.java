@@ -1,8 +1,13 @@
 package Backend.Analysis;
 
+import Backend.Algorithm.AnalysisConfig;
+import Backend.Algorithm.Excerpts;
 import Backend.Algorithm.Normalizer;
+import Backend.Algorithm.PcmSource;
 import Backend.Algorithm.Reader;
 import Backend.Algorithm.Reader.Channel;
+import Backend.Algorithm.Resampler;
+import Backend.Algorithm.SilenceGate;
 import Backend.Algorithm.SimpleCharacteristics;
 import Backend.Algorithm.Transform;
 import Backend.Analysis.AnalysisCompare.CompareResult;
@@ -38,16 +43,38 @@ public class SimpleAnalysis implements SoundAnalysis {
 
   // save/load will save a new analysis and load previously analyzed songs.
   public SimpleAnalysis(String filePath, boolean load, boolean save) throws IOException {
+    this(filePath, load, save, AnalysisConfig.getDefault());
+  }
+
+  // New analyses use config. Loaded analyses keep the config they were saved with.
+  public SimpleAnalysis(String filePath, boolean load, boolean save, AnalysisConfig config) throws IOException {
+    this(filePath, load, save, config, false);
+  }
+
+  // A preview only analyses Excerpts.DEFAULT of the song, and its characteristics are approximate. Loading without
+  // preview analyses the whole song again if the saved analysis was a preview, so a later full analysis upgrades it.
+  public SimpleAnalysis(String filePath, boolean load, boolean save, AnalysisConfig config, boolean preview)
+      throws IOException {
+    this(filePath, load, save, config, preview, null);
+  }
+
+  // gate leaves silence out of a new analysis of the whole song, such as SilenceGate.DEFAULT, or null to analyse all
+  // of it. Previews and loaded analyses ignore it.
+  public SimpleAnalysis(String filePath, boolean load, boolean save, AnalysisConfig config, boolean preview,
+      SilenceGate gate) throws IOException {
     this.filePath = filePath;
 
     Path path;
     String savePath;
+    // Saved analyses can't be analysed again, so they're used even if approximate.
+    boolean saved = false;
     try {
       path = Paths.get(filePath);
       this.fileName = path.getFileName().toString();
-      if(filePath.contains("\\SavedAnalysis\\") && filePath.contains(".simp"))
+      if(filePath.contains("\\SavedAnalysis\\") && filePath.contains(".simp")) {
         savePath = filePath;
-      else
+        saved = true;
+      } else
         savePath = System.getProperty("user.dir") + "\\SavedAnalysis\\" + fileName;
       path = Paths.get(savePath);
     } catch (InvalidPathException e) {
@@ -57,17 +84,30 @@ public class SimpleAnalysis implements SoundAnalysis {
     if (load) {
       System.out.println("SimpleAnalysis: Loading analysis for " + fileName);
       try {
-        this.characteristics = SimpleCharacteristics.load(savePath);
-        return;
+        SimpleCharacteristics loaded = SimpleCharacteristics.load(savePath);
+        if (!loaded.isApproximate() || preview || saved) {
+          this.characteristics = loaded;
+          return;
+        }
+        System.out.println("SimpleAnalysis: Saved analysis is a preview, analysing whole song");
       } catch (IOException e) {
         System.out.println("SimpleAnalysis: Failed to load file - " + e.getMessage());
       }
     }
 
-    System.out.println("SimpleAnalysis: Analysing new song " + fileName);
-    Reader reader = Reader.readFile(filePath);
-    Transform transform = new Transform(reader);
-    Normalizer normalizer = new Normalizer(transform);
+    System.out.println("SimpleAnalysis: Analysing new " + (preview ? "preview of " : "") + "song " + fileName);
+    Transform transform;
+    if (preview) {
+      // Excerpts are chosen from the song's length, so it has to be decoded first.
+      Reader reader = Reader.readFile(filePath).canonical();
+      transform = new Transform(reader, config, Transform.Engine.DIRECT, Excerpts.DEFAULT);
+    } else {
+      // Decode and transform at the same time.
+      try (PcmSource source = Resampler.canonical(Reader.openStream(filePath))) {
+        transform = new Transform(source, config, Transform.Engine.DIRECT, gate);
+      }
+    }
+    Normalizer normalizer = new Normalizer(transform, true);
     this.characteristics = new SimpleCharacteristics(normalizer);
     if (save) {
       System.out.println("SimpleAnalysis: Saving analysis to " + savePath);
@@ -110,6 +150,10 @@ public class SimpleAnalysis implements SoundAnalysis {
     double[] otherLeftFall = otherSimple.characteristics.getAverageRiseMinusFall(Channel.LEFT);
     double[] otherRightFall = otherSimple.characteristics.getAverageRiseMinusFall(Channel.RIGHT);
 
+    if (!this.characteristics.getConfig().equals(otherSimple.characteristics.getConfig()))
+      throw new IllegalArgumentException("SimpleAnalysis: Can't compare a " + this.characteristics.getConfig() + " analysis to a "
+          + otherSimple.characteristics.getConfig() + " one, analyse both with the same preset.");
+
     System.out.println("SimpleAnalysis: Comparing " + this.fileName + " to " + otherSimple.fileName);
 
     // if both stereo
@@ -0,0 +1,131 @@
+package Backend.Helper;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.ForkJoinWorkerThread;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Thread pools shared by every analysis step, so steps don't create and tear down their own ForkJoinPool each call.
+ * Threads are split into lanes of at most maxCoresPerJob threads. Each job runs on one lane, so one song can't
+ * take every core while others wait, and parallelism limits the total on shared machines.
+ * How to use: Call getShared().invoke(task), or invokeAll to run the same step of both channels together.
+ * Get a lane with getShared().lane() to submit several tasks of the same job. The shared executor is configured
+ * by the analysis.parallelism, analysis.maxCoresPerJob and analysis.threadPrefix system properties, or replaced
+ * with setShared.
+ */
+public class AnalysisExecutor implements AutoCloseable {
+  private static volatile AnalysisExecutor shared = new AnalysisExecutor(
+      Integer.getInteger("analysis.parallelism", Runtime.getRuntime().availableProcessors()),
+      System.getProperty("analysis.threadPrefix", "analysis-"),
+      Integer.getInteger("analysis.maxCoresPerJob", 0));
+
+  private final ForkJoinPool[] lanes;
+  private final int parallelism, maxCoresPerJob;
+  private final String threadPrefix;
+
+  /**
+   * @param parallelism Most threads running analysis at once.
+   * @param threadPrefix Start of each thread's name, followed by its lane and thread numbers.
+   * @param maxCoresPerJob Most threads one job can use, or 0 to let a job use all of them.
+   */
+  public AnalysisExecutor(int parallelism, String threadPrefix, int maxCoresPerJob) {
+    if (parallelism < 1)
+      throw new IllegalArgumentException("AnalysisExecutor: Parallelism must be at least 1, was " + parallelism);
+    if (maxCoresPerJob < 0)
+      throw new IllegalArgumentException("AnalysisExecutor: Cores per job can't be negative, was " + maxCoresPerJob);
+    this.parallelism = parallelism;
+    this.threadPrefix = threadPrefix;
+    this.maxCoresPerJob = (maxCoresPerJob == 0) ? parallelism : Math.min(maxCoresPerJob, parallelism);
+
+    // Full lanes of maxCoresPerJob threads, and a smaller last lane with the leftover threads, so the total is
+    // exactly parallelism and no lane is wider than maxCoresPerJob.
+    int laneCount = (parallelism + this.maxCoresPerJob - 1) / this.maxCoresPerJob;
+    lanes = new ForkJoinPool[laneCount];
+    int remaining = parallelism;
+    for (int i = 0; i < laneCount; i++) {
+      int laneParallelism = Math.min(this.maxCoresPerJob, remaining);
+      remaining -= laneParallelism;
+      lanes[i] = new ForkJoinPool(laneParallelism, threadFactory(threadPrefix + i + "-"), null, false);
+    }
+  }
+
+  public static AnalysisExecutor getShared() {
+    return shared;
+  }
+
+  // Replaces the shared executor. The old one keeps running jobs it already has; close it if it isn't needed.
+  public static void setShared(AnalysisExecutor executor) {
+    shared = executor;
+  }
+
+  // Runs a job on the least busy lane and waits for its result.
+  public <T> T invoke(ForkJoinTask<T> task) {
+    return lane().invoke(task);
+  }
+
+  // Runs several jobs as one job on the least busy lane and waits for all of them, so they share its threads
+  // instead of running one after another. Null tasks are skipped.
+  public void invokeAll(ForkJoinTask<?>... tasks) {
+    List<ForkJoinTask<?>> jobs = new ArrayList<>(tasks.length);
+    for (ForkJoinTask<?> task : tasks)
+      if (task != null)
+        jobs.add(task);
+    lane().invoke(new RecursiveAction() {
+      @Override
+      protected void compute() {
+        ForkJoinTask.invokeAll(jobs);
+      }
+    });
+  }
+
+  // Least busy lane. Submit all of one job's tasks to the same lane to keep it within maxCoresPerJob.
+  public ForkJoinPool lane() {
+    ForkJoinPool best = lanes[0];
+    long bestLoad = Long.MAX_VALUE;
+    for (ForkJoinPool lane : lanes) {
+      long load = lane.getActiveThreadCount() + lane.getQueuedSubmissionCount();
+      if (load < bestLoad) {
+        best = lane;
+        bestLoad = load;
+      }
+    }
+    return best;
+  }
+
+  // Every lane, in the order lane picks from when they are equally busy.
+  public List<ForkJoinPool> getLanes() {
+    return List.of(lanes);
+  }
+
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  public int getMaxCoresPerJob() {
+    return maxCoresPerJob;
+  }
+
+  public String getThreadPrefix() {
+    return threadPrefix;
+  }
+
+  // Waits for running jobs and stops the threads.
+  @Override
+  public void close() {
+    for (ForkJoinPool lane : lanes)
+      lane.close();
+  }
+
+  private static ForkJoinPool.ForkJoinWorkerThreadFactory threadFactory(String prefix) {
+    AtomicInteger count = new AtomicInteger();
+    return pool -> {
+      ForkJoinWorkerThread thread = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(pool);
+      thread.setName(prefix + count.getAndIncrement());
+      return thread;
+    };
+  }
+}
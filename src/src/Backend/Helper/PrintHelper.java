@@ -1,6 +1,6 @@
 package Backend.Helper;
 
-import Backend.Algorithm.Transform;
+import Backend.Algorithm.AnalysisConfig;
 import java.text.DecimalFormat;
 
 // Help us print arrays so Algorithm main methods aren't so chonky.
@@ -9,12 +9,13 @@ public class PrintHelper {
   public static final DecimalFormat format = new DecimalFormat("#####.00");
 
   public static void printFrequencies() {
+    printFrequencies(AnalysisConfig.BALANCED);
+  }
+
+  public static void printFrequencies(AnalysisConfig config) {
     System.out.print("Frequencies:");
-    for (int i = 0; i < Transform.FREQUENCY_RESOLUTION; i++) {
-      System.out.print(" " + String.format("%8s", format.format(
-          Transform.BOTTOM_FREQUENCY * Math.pow(Transform.TOP_BOTTOM_RATIO,
-              (double) i / Transform.FREQUENCY_RESOLUTION))));
-    }
+    for (int i = 0; i < config.getFrequencyResolution(); i++)
+      System.out.print(" " + String.format("%8s", format.format(config.frequencyAtBin(i))));
     System.out.println();
   }
 
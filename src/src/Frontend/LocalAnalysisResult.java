@@ -1,8 +1,8 @@
 package Frontend;
 
+import Backend.Algorithm.AnalysisConfig;
 import Backend.Algorithm.Reader.Channel;
 import Backend.Algorithm.SimpleCharacteristics;
-import Backend.Algorithm.Transform;
 import java.awt.Font;
 import javax.swing.JFrame;
 
@@ -30,9 +30,9 @@ public class LocalAnalysisResult extends JFrame {
         "Frequency Bins (20hz - 20khz)", "Perceived Loudness",
         dataset, PlotOrientation.VERTICAL, true, true, false);
 
+    AnalysisConfig config = characteristics.getConfig();
     for (int i = 0; i < 20; i++) {
-      String label = String.valueOf((int)(Transform.frequencyAtBin(
-          i * Transform.FREQUENCY_RESOLUTION / 20)));
+      String label = String.valueOf((int)(config.frequencyAtBin(i * config.getFrequencyResolution() / 20)));
       CategoryMarker marker = new CategoryMarker(label);
       marker.setLabel(label + "hz");
       marker.setLabelFont(labelFont);
@@ -53,18 +53,19 @@ public class LocalAnalysisResult extends JFrame {
   private static DefaultCategoryDataset createDataset(SimpleCharacteristics characteristics) {
     String series1 = "Perceived Loudness", series2 = "Rise+Fall Speed", series3 = "Rise-Fall Speed";
     DefaultCategoryDataset result = new DefaultCategoryDataset();
+    AnalysisConfig config = characteristics.getConfig();
 
     double[] loudness = getLoudness(characteristics);
-    for (int i = 0; i < Transform.FREQUENCY_RESOLUTION; i++)
-      result.addValue(loudness[i], series1, String.valueOf((int)(Transform.frequencyAtBin(i))));
+    for (int i = 0; i < config.getFrequencyResolution(); i++)
+      result.addValue(loudness[i], series1, String.valueOf((int)(config.frequencyAtBin(i))));
 
     double[] rise = getRisePlusFall(characteristics);
-    for (int i = 0; i < Transform.FREQUENCY_RESOLUTION; i++)
-      result.addValue(rise[i], series2, String.valueOf((int)(Transform.frequencyAtBin(i))));
+    for (int i = 0; i < config.getFrequencyResolution(); i++)
+      result.addValue(rise[i], series2, String.valueOf((int)(config.frequencyAtBin(i))));
 
     double[] fall = getRiseMinusFall(characteristics);
-    for (int i = 0; i < Transform.FREQUENCY_RESOLUTION; i++)
-      result.addValue(fall[i], series3, String.valueOf((int)(Transform.frequencyAtBin(i))));
+    for (int i = 0; i < config.getFrequencyResolution(); i++)
+      result.addValue(fall[i], series3, String.valueOf((int)(config.frequencyAtBin(i))));
 
     return result;
   }
@@ -0,0 +1,43 @@
+package tests;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import Backend.Helper.AnalysisExecutor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import org.junit.jupiter.api.*;
+
+public class AnalysisExecutorTests {
+
+  // Passing requirement: Jobs run on threads named with the prefix, and each lane has at most maxCoresPerJob threads.
+  @Test
+  public void testLanes() {
+    try (AnalysisExecutor executor = new AnalysisExecutor(5, "test-", 2)) {
+      assertEquals(2, executor.getMaxCoresPerJob());
+      String thread = executor.invoke(new RecursiveTask<String>() {
+        @Override
+        protected String compute() {
+          return Thread.currentThread().getName();
+        }
+      });
+      assertTrue(thread.startsWith("test-"), thread);
+    }
+  }
+
+  // Passing requirement: No lane is wider than maxCoresPerJob, and the lanes add up to parallelism.
+  @Test
+  public void testLaneWidths() {
+    int[][] settings = {{5, 2}, {8, 3}, {7, 7}, {6, 0}, {4, 10}};
+    for (int[] setting : settings)
+      try (AnalysisExecutor executor = new AnalysisExecutor(setting[0], "test-", setting[1])) {
+        int total = 0;
+        for (ForkJoinPool lane : executor.getLanes()) {
+          assertTrue(lane.getParallelism() <= executor.getMaxCoresPerJob(),
+              "Lane of " + lane.getParallelism() + " threads for " + setting[0] + " and " + setting[1]);
+          total += lane.getParallelism();
+        }
+        assertEquals(setting[0], total);
+      }
+  }
+}
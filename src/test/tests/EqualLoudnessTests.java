@@ -59,4 +59,25 @@ public class EqualLoudnessTests {
     assertEquals(20, EqualLoudness.phonsToDb(EqualLoudness.dbToPhons(20, 500), 500), errorBound);
     assertEquals(80, EqualLoudness.phonsToDb(EqualLoudness.dbToPhons(80, 5000), 5000), errorBound);
   }
+
+  // Passing requirements:
+  // - Table's exact conversion matches dbToPhons of each bin's frequency.
+  // - Table lookups are within LOOKUP_TOLERANCE of the exact conversion, relative above a loudness of 1.
+  @Test
+  public void TestTable() {
+    AnalysisConfig config = AnalysisConfig.BALANCED;
+    EqualLoudness.Table table = EqualLoudness.table(config);
+    for (int bin = 0; bin < config.getFrequencyResolution(); bin++) {
+      double frequency = config.frequencyAtBin(bin);
+      for (double db = -20; db < 140; db += 0.037) {
+        double exact = table.exactPerceivedLoudness(bin, db);
+        assertEquals(EqualLoudness.phonsToLoudness(EqualLoudness.dbToPhons(db, frequency)), exact, 1e-9 * exact);
+        if (Double.isNaN(exact))
+          continue;
+        double tolerance = EqualLoudness.Table.LOOKUP_TOLERANCE * Math.max(1, exact);
+        assertEquals(exact, table.perceivedLoudness(bin, db), tolerance,
+            "Lookup is wrong at bin " + bin + ", " + db + " dB");
+      }
+    }
+  }
 }
@@ -1,8 +1,14 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
 
 import Backend.Algorithm.*;
 
 import Backend.Algorithm.Reader.Channel;
+import Backend.Helper.AnalysisExecutor;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
 import org.junit.jupiter.api.*;
 
 public class NormalizerTests {
@@ -24,8 +30,95 @@ public class NormalizerTests {
         assert2DArrayEquals(brief, lengthy);
     }
 
+    // Passing requirement: Channels of a stereo transform are normalized the same as on their own, even when one is silent.
+    @Test
+    public void testStereo() {
+        float[][] loud = generateFlatTransform(10, 10000f);
+        float[][] silent = generateFlatTransform(10, 0f);
+        Normalizer stereo = new Normalizer(loud, silent);
+        assert2DArrayEquals(new Normalizer(loud, null).getNormalized(Channel.LEFT), stereo.getNormalized(Channel.LEFT));
+        assert2DArrayEquals(silent, stereo.getNormalized(Channel.RIGHT));
+    }
+
+    // Passing requirement: A transform with values spread over 80 dB is normalized to an average perceived loudness of
+    // 256 (80 phons), the same as solving on every value instead of a histogram of them.
+    @Test
+    public void testSpreadVolume() {
+        Random random = new Random(7);
+        float[][] transform = new float[500][AnalysisConfig.BALANCED.getFrequencyResolution()];
+        for (float[] row : transform)
+            for (int j = 0; j < row.length; j++)
+                row[j] = (random.nextInt(20) == 0) ? 0 : (float) Math.pow(10, random.nextDouble() * 4);
+        float[][] normalized = new Normalizer(transform, null).getNormalized(Channel.LEFT);
+
+        double sum = 0;
+        for (float[] row : normalized)
+            for (float value : row)
+                sum += value;
+        assertEquals(256, sum / (normalized.length * AnalysisConfig.BALANCED.getFrequencyResolution()), 0.01);
+    }
+
+    // Passing requirement: Normalizing in place gives the same values as normalizing a copy, in the arrays passed in.
+    @Test
+    public void testInPlace() {
+        float[][] left = generateFlatTransform(10, 100f), right = generateFlatTransform(10, 10f);
+        right[3][7] = 0;
+        Normalizer copied = new Normalizer(left, right, AnalysisConfig.BALANCED);
+        Normalizer inPlace = new Normalizer(left, right, AnalysisConfig.BALANCED, true);
+        assertSame(left, inPlace.getNormalized(Channel.LEFT));
+        assertSame(right, inPlace.getNormalized(Channel.RIGHT));
+        assert2DArrayEquals(copied.getNormalized(Channel.LEFT), left);
+        assert2DArrayEquals(copied.getNormalized(Channel.RIGHT), right);
+        assertEquals(0, right[3][7]);
+    }
+
+    // Passing requirement: Normalizing a transform in place normalizes its own spectrogram rows, to the same values
+    // as normalizing a copy.
+    @Test
+    public void testTransformInPlace() throws IOException {
+        Transform transform = new Transform(Reader.readFile("src/test/resource/tone_1000hz.wav"));
+        float[][] copied = new Normalizer(transform).getNormalized(Channel.LEFT);
+        Normalizer inPlace = new Normalizer(transform, true);
+        assertSame(transform.getSpectrogram(Channel.LEFT).getRows(), inPlace.getNormalized(Channel.LEFT));
+        assert2DArrayEquals(copied, inPlace.getNormalized(Channel.LEFT));
+    }
+
+    // Passing requirement: Normalizing on one thread and on several gives exactly the same values, however the time
+    // samples end up split between the threads' histograms.
+    @Test
+    public void testThreadCount() {
+        AnalysisConfig config = AnalysisConfig.BALANCED;
+        Random random = new Random(11);
+        float[][] transform = new float[20000][config.getFrequencyResolution()];
+        for (float[] row : transform)
+            for (int j = 0; j < row.length; j++)
+                row[j] = (float) Math.pow(10, random.nextDouble() * 5);
+
+        AnalysisExecutor shared = AnalysisExecutor.getShared();
+        float[][][] results = new float[2][][];
+        int[] cores = {1, 4};
+        try {
+            for (int i = 0; i < cores.length; i++)
+                try (AnalysisExecutor executor = new AnalysisExecutor(cores[i], "normalizer-test-", cores[i])) {
+                    AnalysisExecutor.setShared(executor);
+                    results[i] = new Normalizer(transform, null, config).getNormalized(Channel.LEFT);
+                }
+        } finally {
+            AnalysisExecutor.setShared(shared);
+        }
+        for (int i = 0; i < transform.length; i++)
+            assertArrayEquals(results[0][i], results[1][i], "Time sample " + i + " differs.");
+    }
+
+    private float[][] generateFlatTransform(int length, float volume) {
+        float[][] result = new float[length][AnalysisConfig.BALANCED.getFrequencyResolution()];
+        for (float[] row : result)
+            Arrays.fill(row, volume);
+        return result;
+    }
+
     private float[][] generateNormalizedFlatTransform(int length, float volume) {
-        float[][] result = new float[length][Transform.FREQUENCY_RESOLUTION];
+        float[][] result = new float[length][AnalysisConfig.BALANCED.getFrequencyResolution()];
         for (int i = 0; i < result.length; i++)
             for (int j = 0; j < result[0].length; j++)
                 result[i][j] = volume;
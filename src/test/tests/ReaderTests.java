@@ -0,0 +1,310 @@
+package tests;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import Backend.Algorithm.PcmCache;
+import Backend.Algorithm.PcmSource;
+import Backend.Algorithm.Reader;
+import Backend.Algorithm.Reader.Channel;
+import Backend.Algorithm.Resampler;
+import Backend.Helper.AnalysisExecutor;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Arrays;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+import org.junit.jupiter.api.*;
+
+public class ReaderTests {
+
+  // Passing requirement: Mapped .wav reader gives the same samples as javax.sound for mono and stereo files.
+  @Test
+  public void testWavMatchesJavaSound() throws IOException, UnsupportedAudioFileException {
+    assertMatchesJavaSound("src/test/resource/white_noise.wav");
+    assertMatchesJavaSound("src/test/resource/tone_1000hz.wav");
+  }
+
+  // Passing requirement: Unknown chunks (with odd sizes) before the data chunk are skipped.
+  @Test
+  public void testWavExtraChunks() throws IOException {
+    short[] left = {0, 1000, -1000, Short.MAX_VALUE, Short.MIN_VALUE};
+    short[] right = {5, -5, 50, -50, 500};
+    File file = File.createTempFile("reader_test", ".wav");
+    file.deleteOnExit();
+    Files.write(file.toPath(), stereoWav(left, right, 22050));
+
+    Reader reader = Reader.readFile(file.getPath());
+    assertEquals(Reader.Mode.STEREO, reader.getMode());
+    assertEquals(22050, reader.getSampleRate());
+    assertArrayEquals(left, reader.getChannel(Channel.LEFT));
+    assertArrayEquals(right, reader.getChannel(Channel.RIGHT));
+  }
+
+  // Passing requirements, in bytes held at once per second of audio, as multiples of the decoded 16-bit PCM:
+  // - A .wav is read straight into arrays of exactly the right size, so exactly 1.
+  // - Sequential .mp3 decoding grows its arrays by half at a time, so under 2.5 (it was far more with List<Byte>).
+  // - Parallel .mp3 decoding holds the file and the exactly sized arrays, so under 1.5.
+  @Test
+  public void testDecodeMemory() throws IOException {
+    Reader wav = Reader.readFile("src/test/resource/tone_1000hz.wav");
+    assertEquals(1.0, wav.getDecodeBytesPerSecond() / pcmBytesPerSecond(wav), 1e-9);
+
+    String file = "src/test/resource/Blue_Pearl.mp3";
+    Reader sequential = Reader.readFile(file, Reader.DecodeMode.SEQUENTIAL);
+    assertTrue(sequential.getDecodeBytesPerSecond() < 2.5 * pcmBytesPerSecond(sequential),
+        "Sequential decoding used " + (long) sequential.getDecodeBytesPerSecond() + " bytes per second.");
+    Reader parallel = Reader.readFile(file, Reader.DecodeMode.PARALLEL);
+    assertTrue(parallel.getDecodeBytesPerSecond() < 1.5 * pcmBytesPerSecond(parallel),
+        "Parallel decoding used " + (long) parallel.getDecodeBytesPerSecond() + " bytes per second.");
+  }
+
+  // Passing requirement: Streaming a stereo .wav in blocks gives the same samples as reading it whole, and keeps
+  // giving them after the file is deleted, since the file is mapped once when the stream starts reading.
+  @Test
+  public void testWavStream() throws IOException {
+    short[] left = new short[10000], right = new short[10000];
+    for (int i = 0; i < left.length; i++) {
+      left[i] = (short) (i * 7);
+      right[i] = (short) (-i * 3);
+    }
+    File file = File.createTempFile("reader_test", ".wav");
+    file.deleteOnExit();
+    Files.write(file.toPath(), stereoWav(left, right, 44100));
+
+    short[] streamedLeft = new short[left.length], streamedRight = new short[right.length];
+    try (PcmSource source = Reader.openStream(file.getPath())) {
+      int offset = 0, read;
+      while ((read = source.read(streamedLeft, streamedRight, offset, Math.min(777, left.length - offset))) > 0) {
+        offset += read;
+        if (offset == 777)
+          file.delete(); // Fails harmlessly where open files can't be deleted
+      }
+      assertEquals(left.length, offset);
+    }
+    assertArrayEquals(left, streamedLeft);
+    assertArrayEquals(right, streamedRight);
+  }
+
+  // Passing requirement: Decoding an .mp3 in parallel segments gives exactly the same samples as one decoder,
+  // whether it is read whole or streamed.
+  @Test
+  public void testParallelMp3Decode() throws IOException {
+    String file = "src/test/resource/Blue_Pearl.mp3";
+    Reader sequential = Reader.readFile(file, Reader.DecodeMode.SEQUENTIAL);
+    Reader parallel = Reader.readFile(file, Reader.DecodeMode.PARALLEL);
+
+    assertEquals(sequential.getMode(), parallel.getMode());
+    assertEquals(sequential.getSampleRate(), parallel.getSampleRate());
+    assertArrayEquals(sequential.getChannel(Channel.LEFT), parallel.getChannel(Channel.LEFT));
+    assertArrayEquals(sequential.getChannel(Channel.RIGHT), parallel.getChannel(Channel.RIGHT));
+
+    // Streams with one decoder, then with segments decoded on four threads and read as they finish.
+    AnalysisExecutor shared = AnalysisExecutor.getShared();
+    int[] cores = {1, 4};
+    try {
+      for (int threads : cores)
+        try (AnalysisExecutor executor = new AnalysisExecutor(threads, "reader-test-", threads)) {
+          AnalysisExecutor.setShared(executor);
+          try (PcmSource source = Reader.openStream(file)) {
+            assertEquals(sequential.getSampleRate(), source.getSampleRate());
+            assertArrayEquals(sequential.getChannel(Channel.LEFT), drainLeft(source), threads + " threads");
+          }
+          // Closing part way through drops the segments that haven't been read.
+          try (PcmSource source = Reader.openStream(file)) {
+            short[] block = new short[4096];
+            assertTrue(source.read(block, new short[block.length], 0, block.length) > 0);
+          }
+        }
+    } finally {
+      AnalysisExecutor.setShared(shared);
+    }
+  }
+
+  // Passing requirement: Cached PCM gives the same samples as decoding, for both whole reads and streams,
+  // least recently used entries are evicted once the cache is over its size limit, and a stream reading an entry
+  // keeps its samples when the entry is evicted part way through.
+  @Test
+  public void testPcmCache() throws IOException {
+    String file = "src/test/resource/Blue_Pearl.mp3";
+    Path directory = Files.createTempDirectory("pcm_cache");
+    Reader decoded = Reader.readFile(file, Reader.DecodeMode.SEQUENTIAL);
+    long entryBytes = 44 + (long) decoded.getChannel(Channel.LEFT).length * 4;
+    PcmCache cache = new PcmCache(directory, entryBytes);
+
+    try {
+      Reader.setPcmCache(cache);
+      // First streamed read fills the cache, second one reads from it.
+      for (int i = 0; i < 2; i++) {
+        try (PcmSource source = Reader.openStream(file)) {
+          assertArrayEquals(decoded.getChannel(Channel.LEFT), drainLeft(source));
+        }
+        assertEquals(1, cacheFiles(directory));
+      }
+      Reader cached = Reader.readFile(file);
+      assertEquals(decoded.getSampleRate(), cached.getSampleRate());
+      assertArrayEquals(decoded.getChannel(Channel.LEFT), cached.getChannel(Channel.LEFT));
+      assertArrayEquals(decoded.getChannel(Channel.RIGHT), cached.getChannel(Channel.RIGHT));
+
+      // A second entry doesn't fit next to the first, so the older one is evicted while it is being streamed.
+      short[] expected = decoded.getChannel(Channel.LEFT);
+      try (PcmSource source = Reader.openStream(file)) {
+        short[] first = new short[4096];
+        int read = source.read(first, new short[first.length], 0, first.length);
+        // Opening the stream counted as a use, so age the entry to make sure it is the one evicted.
+        Files.setLastModifiedTime(directory.resolve(cache.key(file) + ".wav"), FileTime.fromMillis(0));
+        PcmCache.Entry entry = cache.newEntry("other", Reader.Mode.MONO, 44100);
+        entry.write(new short[16], null, 0, 16);
+        entry.commit();
+
+        assertArrayEquals(Arrays.copyOf(expected, read), Arrays.copyOf(first, read));
+        assertArrayEquals(Arrays.copyOfRange(expected, read, expected.length), drainLeft(source));
+      }
+      // Where open files can't be deleted, the entry is only evicted once the stream is closed.
+      cache.evict();
+      assertEquals(1, cacheFiles(directory));
+      assertNull(cache.lookup(cache.key(file)));
+    } finally {
+      Reader.setPcmCache(null);
+      try (var files = Files.list(directory)) {
+        for (Path path : files.toList())
+          Files.delete(path);
+      }
+      Files.delete(directory);
+    }
+  }
+
+  // Passing requirements:
+  // - A tone resampled from 44.1 kHz to 48 kHz has the right length and is within 0.5% of the ideal tone.
+  // - A tone above the new Nyquist frequency is removed instead of aliasing when downsampling 96 kHz to 44.1 kHz.
+  // - Reading one sample at a time gives the same samples as reading blocks.
+  @Test
+  public void testResampler() throws IOException {
+    double amplitude = 10000;
+    Reader tone = toneReader(1000, amplitude, 44100);
+    short[] resampled;
+    try (PcmSource source = new Resampler(tone.stream(), 48000)) {
+      assertEquals(48000, source.getSampleRate());
+      resampled = drainLeft(source);
+    }
+    assertEquals(48000, resampled.length);
+    // Away from the ends, where the filter reaches past the tone.
+    for (int i = 1000; i < resampled.length - 1000; i++)
+      assertEquals(amplitude * Math.sin(2 * Math.PI * 1000 * i / 48000), resampled[i], amplitude * 0.005,
+          "Resampled tone is wrong at sample " + i);
+
+    try (PcmSource source = new Resampler(toneReader(30000, amplitude, 96000).stream(), 44100)) {
+      short[] aliased = drainLeft(source);
+      for (int i = 1000; i < aliased.length - 1000; i++)
+        assertTrue(Math.abs(aliased[i]) < amplitude * 0.01, "Tone above Nyquist aliased at sample " + i);
+    }
+
+    try (PcmSource source = new Resampler(tone.stream(), 48000)) {
+      short[] left = new short[1], right = new short[1];
+      for (short sample : resampled) {
+        assertEquals(1, source.read(left, right, 0, 1));
+        assertEquals(sample, left[0]);
+        assertEquals(-sample, right[0]);
+      }
+      assertEquals(-1, source.read(left, right, 0, 1));
+    }
+  }
+
+  // One second of a tone, inverted in the right channel.
+  private static Reader toneReader(double frequency, double amplitude, int sampleRate) throws IOException {
+    short[] left = new short[sampleRate], right = new short[sampleRate];
+    for (int i = 0; i < sampleRate; i++) {
+      left[i] = (short) Math.round(amplitude * Math.sin(2 * Math.PI * frequency * i / sampleRate));
+      right[i] = (short) -left[i];
+    }
+    File file = File.createTempFile("resampler_test", ".wav");
+    file.deleteOnExit();
+    Files.write(file.toPath(), stereoWav(left, right, sampleRate));
+    return Reader.readFile(file.getPath());
+  }
+
+  private static double pcmBytesPerSecond(Reader reader) {
+    return reader.getSampleRate() * Short.BYTES * (reader.getMode() == Reader.Mode.STEREO ? 2 : 1);
+  }
+
+  private static short[] drainLeft(PcmSource source) throws IOException {
+    ByteArrayOutputStream leftBytes = new ByteArrayOutputStream();
+    short[] left = new short[4096], right = new short[4096];
+    int read;
+    while ((read = source.read(left, right, 0, left.length)) != -1)
+      for (int i = 0; i < read; i++) {
+        leftBytes.write(left[i] & 0xFF);
+        leftBytes.write(left[i] >> 8);
+      }
+    byte[] bytes = leftBytes.toByteArray();
+    short[] samples = new short[bytes.length / 2];
+    ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN).asShortBuffer().get(samples);
+    return samples;
+  }
+
+  private static long cacheFiles(Path directory) throws IOException {
+    try (var files = Files.list(directory)) {
+      return files.filter(path -> path.toString().endsWith(".wav")).count();
+    }
+  }
+
+  private void assertMatchesJavaSound(String filepath) throws IOException, UnsupportedAudioFileException {
+    Reader reader = Reader.readFile(filepath);
+
+    AudioInputStream stream = AudioSystem.getAudioInputStream(new File(filepath));
+    int channels = stream.getFormat().getChannels();
+    ByteBuffer bytes = ByteBuffer.wrap(stream.readAllBytes()).order(ByteOrder.LITTLE_ENDIAN);
+    stream.close();
+    int length = bytes.capacity() / (2 * channels);
+    short[] left = new short[length], right = new short[length];
+    for (int i = 0; i < length; i++) {
+      left[i] = bytes.getShort();
+      if (channels == 2)
+        right[i] = bytes.getShort();
+    }
+
+    assertEquals((int) stream.getFormat().getSampleRate(), reader.getSampleRate());
+    assertArrayEquals(left, reader.getChannel(Channel.LEFT));
+    if (channels == 2)
+      assertArrayEquals(right, reader.getChannel(Channel.RIGHT));
+    else
+      assertNull(reader.getChannel(Channel.RIGHT));
+  }
+
+  private static byte[] stereoWav(short[] left, short[] right, int sampleRate) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    ByteBuffer fmt = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+    fmt.putShort((short) 1).putShort((short) 2).putInt(sampleRate).putInt(sampleRate * 4)
+        .putShort((short) 4).putShort((short) 16);
+    ByteBuffer data = ByteBuffer.allocate(left.length * 4).order(ByteOrder.LITTLE_ENDIAN);
+    for (int i = 0; i < left.length; i++)
+      data.putShort(left[i]).putShort(right[i]);
+    byte[] list = {'t', 'e', 's', 't', '!'};
+
+    int riffSize = 4 + (8 + 16) + (8 + list.length + 1) + (8 + data.capacity());
+    writeChunkHeader(out, "RIFF", riffSize);
+    out.writeBytes("WAVE".getBytes());
+    writeChunkHeader(out, "fmt ", 16);
+    out.writeBytes(fmt.array());
+    writeChunkHeader(out, "LIST", list.length);
+    out.writeBytes(list);
+    out.write(0); // pad byte
+    writeChunkHeader(out, "data", data.capacity());
+    out.writeBytes(data.array());
+    return out.toByteArray();
+  }
+
+  private static void writeChunkHeader(ByteArrayOutputStream out, String id, int size) {
+    out.writeBytes(id.getBytes());
+    out.writeBytes(ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN).putInt(size).array());
+  }
+}
@@ -0,0 +1,67 @@
+package tests;
+
+import Backend.Algorithm.AnalysisConfig;
+import Backend.Algorithm.PcmSource;
+import Backend.Algorithm.Reader.Mode;
+import Backend.Algorithm.Simd;
+import Backend.Algorithm.Transform;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Times a whole direct transform of 60 seconds of noise with and without the Vector API loops.
+ * Not a test. Build with mvn -Psimd test-compile, then run this class with --add-modules jdk.incubator.vector,
+ * once for each vector width with -Dsimd.bits=128, 256 or 512.
+ */
+public class SimdBenchmark {
+  public static void main(String[] args) throws IOException {
+    if (!Simd.isAvailable()) {
+      System.out.println("SimdBenchmark: Vector API isn't available, build with -Psimd and add the module.");
+      return;
+    }
+    short[] noise = new short[44100 * 60];
+    Random random = new Random(0);
+    for (int i = 0; i < noise.length; i++)
+      noise[i] = (short) (random.nextGaussian() * 3000);
+
+    for (boolean enabled : new boolean[]{false, true, false, true}) {
+      Simd.setEnabled(enabled);
+      long startTime = System.nanoTime();
+      new Transform(source(noise), AnalysisConfig.BALANCED, Transform.Engine.DIRECT);
+      System.out.println((enabled ? "Vector" : "Scalar") + " transform calculation time: "
+          + ((System.nanoTime() - startTime) / 1000000000.0) + " seconds");
+    }
+    Simd.setEnabled(true);
+  }
+
+  // Mono 44.1 kHz stream of samples, so nothing has to be written to disk.
+  private static PcmSource source(short[] samples) {
+    return new PcmSource() {
+      private int position;
+
+      @Override
+      public Mode getMode() {
+        return Mode.MONO;
+      }
+
+      @Override
+      public int getSampleRate() {
+        return 44100;
+      }
+
+      @Override
+      public int read(short[] left, short[] right, int offset, int length) {
+        int count = Math.min(length, samples.length - position);
+        if (count <= 0)
+          return (length == 0) ? 0 : -1;
+        System.arraycopy(samples, position, left, offset, count);
+        position += count;
+        return count;
+      }
+
+      @Override
+      public void close() {
+      }
+    };
+  }
+}
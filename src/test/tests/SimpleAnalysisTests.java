@@ -1,10 +1,25 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import Backend.Algorithm.AnalysisConfig;
+import Backend.Algorithm.Reader.Channel;
+import Backend.Algorithm.SilenceGate;
 import Backend.Analysis.SimpleAnalysis;
 import Backend.Analysis.SoundAnalysis;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
 
 // Tests the overall algorithm for SimpleAnalysis
 public class SimpleAnalysisTests {
@@ -44,6 +59,43 @@ public class SimpleAnalysisTests {
     assertEquals(a.compareTo(b), b.compareTo(a), zeroErrorBound);
   }
 
+  // Passing Requirement: Analyses made with different presets can't be compared.
+  @Test
+  public void testMixedPresets() throws IOException {
+    SoundAnalysis fast = new SimpleAnalysis("src/test/resource/white_noise.wav", false, false, AnalysisConfig.FAST);
+    SoundAnalysis balanced = new SimpleAnalysis("src/test/resource/white_noise.wav", false, false,
+        AnalysisConfig.BALANCED);
+    assertEquals(1.0, fast.compareTo(fast), zeroErrorBound);
+    assertThrows(IllegalArgumentException.class, () -> fast.compareTo(balanced));
+  }
+
+  // Passing Requirement: Silence is only left out when a gate is passed, so the default analysis keeps all of it.
+  @Test
+  public void testSilenceGateOptIn(@TempDir Path folder) throws IOException {
+    // 1 second of silence, 2 of tone, 1 of silence.
+    int sampleRate = 44100;
+    byte[] bytes = new byte[4 * sampleRate * 2];
+    for (int i = sampleRate; i < 3 * sampleRate; i++) {
+      short sample = (short) (0.5 * Short.MAX_VALUE * Math.sin(2 * Math.PI * 1000 * i / sampleRate));
+      bytes[2 * i] = (byte) sample;
+      bytes[(2 * i) + 1] = (byte) (sample >> 8);
+    }
+    File file = folder.resolve("quiet_ends.wav").toFile();
+    AudioFormat format = new AudioFormat(sampleRate, 16, 1, true, false);
+    AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(bytes), format, bytes.length / 2),
+        AudioFileFormat.Type.WAVE, file);
+
+    AnalysisConfig config = AnalysisConfig.BALANCED;
+    double[] byDefault = new SimpleAnalysis(file.getPath(), false, false, config).getCharacteristics()
+        .getAverageVolume(Channel.LEFT);
+    double[] ungated = new SimpleAnalysis(file.getPath(), false, false, config, false, null).getCharacteristics()
+        .getAverageVolume(Channel.LEFT);
+    double[] gated = new SimpleAnalysis(file.getPath(), false, false, config, false, SilenceGate.DEFAULT)
+        .getCharacteristics().getAverageVolume(Channel.LEFT);
+    assertArrayEquals(ungated, byDefault, zeroErrorBound);
+    assertFalse(Arrays.equals(ungated, gated), "Gate didn't leave out the silence.");
+  }
+
   // Passing Requirement: Same sound with reversed polarity has ~100% match result.
   @Test
   public void testPolarity() throws IOException {
@@ -0,0 +1,283 @@
+package tests;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import Backend.Algorithm.AnalysisConfig;
+import Backend.Algorithm.AudioSelection;
+import Backend.Algorithm.Excerpts;
+import Backend.Algorithm.Normalizer;
+import Backend.Algorithm.Reader;
+import Backend.Algorithm.Reader.Channel;
+import Backend.Algorithm.SilenceGate;
+import Backend.Algorithm.SimpleCharacteristics;
+import Backend.Algorithm.Transform;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
+
+public class SimpleCharacteristicsTests {
+  private static final double errorBound = 1e-9;
+
+  // Passing requirement: The one-sweep parallel sums give the same characteristics as the original column-by-column
+  // formulas (average volume, and Math.pow(change, 2) of every rise and fall times 0.002 over the length), within
+  // errorBound relative, for both channels.
+  @Test
+  public void testMatchesColumnFormulas() {
+    AnalysisConfig config = AnalysisConfig.BALANCED;
+    int bins = config.getFrequencyResolution();
+    Random random = new Random(7);
+    float[][] left = new float[5000][bins], right = new float[5000][bins];
+    for (int i = 0; i < left.length; i++)
+      for (int j = 0; j < bins; j++) {
+        left[i][j] = (float) Math.pow(10, random.nextDouble() * 4);
+        right[i][j] = (float) Math.pow(10, random.nextDouble() * 2);
+      }
+    Normalizer normalizer = new Normalizer(left, right, config);
+    SimpleCharacteristics characteristics = new SimpleCharacteristics(normalizer);
+
+    for (Channel channel : Channel.values()) {
+      float[][] normalized = normalizer.getNormalized(channel);
+      double[] volume = new double[bins], rise = new double[bins], fall = new double[bins];
+      double[] risePlusFall = new double[bins], riseMinusFall = new double[bins];
+      for (int j = 0; j < bins; j++) {
+        for (float[] row : normalized)
+          volume[j] += row[j];
+        volume[j] /= normalized.length;
+        for (int i = 1; i < normalized.length; i++) {
+          if (normalized[i][j] > normalized[i - 1][j])
+            rise[j] += Math.pow(normalized[i][j] - normalized[i - 1][j], 2.0);
+          if (normalized[i][j] < normalized[i - 1][j])
+            fall[j] += Math.pow(normalized[i - 1][j] - normalized[i][j], 2.0);
+        }
+        rise[j] *= 0.002 / normalized.length;
+        fall[j] *= 0.002 / normalized.length;
+        risePlusFall[j] = rise[j] + fall[j];
+        riseMinusFall[j] = rise[j] - fall[j];
+      }
+      assertClose(volume, characteristics.getAverageVolume(channel));
+      assertClose(risePlusFall, characteristics.getAverageRisePlusFall(channel));
+      assertClose(riseMinusFall, characteristics.getAverageRiseMinusFall(channel));
+    }
+  }
+
+  // Passing requirement: Accumulating segments frame by frame and merging them (including an empty one and one of
+  // a single time sample) gives the same characteristics as the whole normalized song, for both channels.
+  @Test
+  public void testMergedAccumulators() {
+    AnalysisConfig config = AnalysisConfig.BALANCED;
+    int bins = config.getFrequencyResolution();
+    Random random = new Random(3);
+    float[][] left = new float[3000][bins], right = new float[3000][bins];
+    for (int i = 0; i < left.length; i++)
+      for (int j = 0; j < bins; j++) {
+        left[i][j] = (float) Math.pow(10, random.nextDouble() * 4);
+        right[i][j] = (float) Math.pow(10, random.nextDouble() * 3);
+      }
+    Normalizer normalizer = new Normalizer(left, right, config);
+    SimpleCharacteristics whole = new SimpleCharacteristics(normalizer);
+
+    int[] segmentEnds = {0, 1, 1000, 1001, 2500, 3000};
+    SimpleCharacteristics.Accumulator[] merged = new SimpleCharacteristics.Accumulator[2];
+    for (Channel channel : Channel.values()) {
+      float[][] normalized = normalizer.getNormalized(channel);
+      SimpleCharacteristics.Accumulator result = new SimpleCharacteristics.Accumulator(bins);
+      for (int s = 1; s < segmentEnds.length; s++) {
+        SimpleCharacteristics.Accumulator segment = new SimpleCharacteristics.Accumulator(bins);
+        for (int i = segmentEnds[s - 1]; i < segmentEnds[s]; i++)
+          segment.add(normalized[i]);
+        result.merge(segment);
+      }
+      assertEquals(normalized.length, result.getLength());
+      merged[channel.ordinal()] = result;
+    }
+    SimpleCharacteristics accumulated = new SimpleCharacteristics(config, merged[0], merged[1]);
+
+    for (Channel channel : Channel.values()) {
+      assertClose(whole.getAverageVolume(channel), accumulated.getAverageVolume(channel));
+      assertClose(whole.getAverageRisePlusFall(channel), accumulated.getAverageRisePlusFall(channel));
+      assertClose(whole.getAverageRiseMinusFall(channel), accumulated.getAverageRiseMinusFall(channel));
+    }
+    assertArrayEquals(new double[0][], accumulated.getTrimmedSeconds());
+  }
+
+  // Passing requirements:
+  // - The jump between the loud and quiet parts on each side of a trimmed gap isn't counted as rise or fall.
+  // - The characteristics are the same as accumulating each region on its own and appending them.
+  @Test
+  public void testTrimmedGap(@TempDir Path folder) throws IOException {
+    // 2 seconds of loud tone, then 3 of quiet tone. Only the first and last second are kept.
+    int sampleRate = 44100;
+    byte[] bytes = new byte[5 * sampleRate * 2];
+    for (int i = 0; i < 5 * sampleRate; i++) {
+      double volume = (i < 2 * sampleRate) ? 0.5 : 0.01;
+      short sample = (short) (volume * Short.MAX_VALUE * Math.sin(2 * Math.PI * 1000 * i / sampleRate));
+      bytes[2 * i] = (byte) sample;
+      bytes[(2 * i) + 1] = (byte) (sample >> 8);
+    }
+    File file = folder.resolve("gap.wav").toFile();
+    AudioFormat format = new AudioFormat(sampleRate, 16, 1, true, false);
+    AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(bytes), format, bytes.length / 2),
+        AudioFileFormat.Type.WAVE, file);
+    AudioSelection ends = new AudioSelection() {
+      @Override
+      public List<int[]> select(short[][] channels, int length, int sampleRate) {
+        return List.of(new int[]{0, sampleRate}, new int[]{4 * sampleRate, length});
+      }
+
+      @Override
+      public boolean isApproximate() {
+        return false;
+      }
+    };
+
+    AnalysisConfig config = AnalysisConfig.BALANCED;
+    Transform transform = new Transform(Reader.readFile(file.getPath()), config, Transform.Engine.DIRECT, ends);
+    Normalizer normalizer = new Normalizer(transform);
+    int[] regionStarts = normalizer.getRegionStarts();
+    assertArrayEquals(new int[]{0, (int) config.getTimeResolution()}, regionStarts);
+    SimpleCharacteristics characteristics = new SimpleCharacteristics(normalizer);
+
+    float[][] normalized = normalizer.getNormalized(Channel.LEFT);
+    int bins = config.getFrequencyResolution();
+    SimpleCharacteristics expected = new SimpleCharacteristics(config, byRegion(normalized, regionStarts, false), null);
+    assertSameLeft(expected, characteristics);
+
+    // Counting the splice would add a large change to the tone's bin.
+    int toneBin = (int) Math.round(bins * Math.log(1000 / Transform.BOTTOM_FREQUENCY)
+        / Math.log(Transform.TOP_BOTTOM_RATIO));
+    double splicedChange = new SimpleCharacteristics(config, byRegion(normalized, regionStarts, true), null)
+        .getAverageRisePlusFall(Channel.LEFT)[toneBin];
+    assertTrue(splicedChange > 2 * characteristics.getAverageRisePlusFall(Channel.LEFT)[toneBin],
+        "Splice isn't a large change, so the test doesn't show it is left out.");
+  }
+
+  // Passing requirements:
+  // - Each excerpt of a preview starts a new region.
+  // - The preview's characteristics are the same as accumulating each excerpt on its own and appending them.
+  @Test
+  public void testExcerptBoundaries() throws IOException {
+    AnalysisConfig config = AnalysisConfig.BALANCED;
+    Transform transform = new Transform(Reader.readFile("src/test/resource/pink_noise.wav"), config,
+        Transform.Engine.DIRECT, new Excerpts(2, 0.2, 0.5, 0.8));
+    Normalizer normalizer = new Normalizer(transform);
+    int[] regionStarts = normalizer.getRegionStarts();
+    assertEquals(3, regionStarts.length, "Excerpts don't each start a region.");
+
+    float[][] normalized = normalizer.getNormalized(Channel.LEFT);
+    SimpleCharacteristics expected = new SimpleCharacteristics(config, byRegion(normalized, regionStarts, false), null);
+    assertSameLeft(expected, new SimpleCharacteristics(normalizer));
+  }
+
+  // Passing requirements:
+  // - Binary files start with "SIMP" and load back exactly, for stereo and mono.
+  // - Text files from before the binary format still load.
+  // - Cut short binary files and corrupted headers fail with an IOException.
+  @Test
+  public void testBinaryFormat(@TempDir Path folder) throws IOException {
+    AnalysisConfig config = AnalysisConfig.FAST;
+    int bins = config.getFrequencyResolution();
+    Random random = new Random(5);
+    float[][] left = new float[200][bins], right = new float[200][bins];
+    for (int i = 0; i < left.length; i++)
+      for (int j = 0; j < bins; j++) {
+        left[i][j] = 1 + random.nextInt(10000);
+        right[i][j] = 1 + random.nextInt(100);
+      }
+    Normalizer normalizer = new Normalizer(left, right, config);
+    SimpleCharacteristics.Accumulator leftSums = new SimpleCharacteristics.Accumulator(bins);
+    for (float[] frame : normalizer.getNormalized(Channel.LEFT))
+      leftSums.add(frame);
+
+    for (SimpleCharacteristics saved : new SimpleCharacteristics[]{new SimpleCharacteristics(normalizer),
+        new SimpleCharacteristics(config, leftSums, null)}) {
+      String path = folder.resolve("song").toString();
+      saved.write(path);
+      byte[] bytes = Files.readAllBytes(Path.of(path + ".simp"));
+      assertEquals("SIMP", new String(bytes, 0, 4));
+      SimpleCharacteristics loaded = SimpleCharacteristics.load(path);
+      assertSame(config, loaded.getConfig());
+      assertEquals(saved.isApproximate(), loaded.isApproximate());
+      for (Channel channel : Channel.values()) {
+        assertArrayEquals(saved.getAverageVolume(channel), loaded.getAverageVolume(channel));
+        assertArrayEquals(saved.getAverageRisePlusFall(channel), loaded.getAverageRisePlusFall(channel));
+        assertArrayEquals(saved.getAverageRiseMinusFall(channel), loaded.getAverageRiseMinusFall(channel));
+      }
+
+      Files.write(Path.of(path + ".simp"), Arrays.copyOf(bytes, bytes.length - 8));
+      assertThrows(IOException.class, () -> SimpleCharacteristics.load(path));
+    }
+
+    // Corrupted headers: negative and huge sizes, and a config that can't exist.
+    String path = folder.resolve("corrupt").toString();
+    new SimpleCharacteristics(normalizer).write(path);
+    byte[] bytes = Files.readAllBytes(Path.of(path + ".simp"));
+    int[][] intFields = {{12, -1}, {16, -1}, {20, -1}, {16, Integer.MAX_VALUE}, {20, Integer.MAX_VALUE}, {12, 0}};
+    for (int[] field : intFields) {
+      ByteBuffer corrupt = ByteBuffer.wrap(bytes.clone()).order(ByteOrder.LITTLE_ENDIAN).putInt(field[0], field[1]);
+      Files.write(Path.of(path + ".simp"), corrupt.array());
+      assertThrows(IOException.class, () -> SimpleCharacteristics.load(path), "Header field " + field[0]);
+    }
+    ByteBuffer corrupt = ByteBuffer.wrap(bytes.clone()).order(ByteOrder.LITTLE_ENDIAN).putDouble(24, -1);
+    Files.write(Path.of(path + ".simp"), corrupt.array());
+    assertThrows(IOException.class, () -> SimpleCharacteristics.load(path), "Negative time resolution");
+
+    // Mono, approximate text file with one trimmed range.
+    StringBuilder text = new StringBuilder("Mono Approximate " + config.toHeader() + "\nTrimmed 0.0 1.5\n");
+    for (int i = 0; i < 3 * bins; i++)
+      text.append(i).append("\n");
+    Path textPath = folder.resolve("text.simp");
+    Files.writeString(textPath, text);
+    SimpleCharacteristics legacy = SimpleCharacteristics.load(textPath.toString());
+    assertTrue(legacy.isApproximate());
+    assertArrayEquals(new double[][]{{0, 1.5}}, legacy.getTrimmedSeconds());
+    assertEquals(2 * bins, legacy.getAverageRiseMinusFall(Channel.LEFT)[0]);
+    assertNull(legacy.getAverageVolume(Channel.RIGHT));
+  }
+
+  // Accumulates each region on its own, then merges them as if they were adjacent or appends them.
+  private static SimpleCharacteristics.Accumulator byRegion(float[][] normalized, int[] regionStarts,
+      boolean adjacent) {
+    SimpleCharacteristics.Accumulator result = new SimpleCharacteristics.Accumulator(normalized[0].length);
+    for (int r = 0; r < regionStarts.length; r++) {
+      int end = (r + 1 < regionStarts.length) ? regionStarts[r + 1] : normalized.length;
+      SimpleCharacteristics.Accumulator region = new SimpleCharacteristics.Accumulator(normalized[0].length);
+      for (int i = regionStarts[r]; i < end; i++)
+        region.add(normalized[i]);
+      if (adjacent)
+        result.merge(region);
+      else
+        result.append(region);
+    }
+    return result;
+  }
+
+  private static void assertSameLeft(SimpleCharacteristics expected, SimpleCharacteristics actual) {
+    assertClose(expected.getAverageVolume(Channel.LEFT), actual.getAverageVolume(Channel.LEFT));
+    assertClose(expected.getAverageRisePlusFall(Channel.LEFT), actual.getAverageRisePlusFall(Channel.LEFT));
+    assertClose(expected.getAverageRiseMinusFall(Channel.LEFT), actual.getAverageRiseMinusFall(Channel.LEFT));
+  }
+
+  private static void assertClose(double[] expected, double[] actual) {
+    assertEquals(expected.length, actual.length);
+    for (int i = 0; i < expected.length; i++)
+      assertEquals(expected[i], actual[i], errorBound * Math.abs(expected[i]), "Bin " + i + " differs.");
+  }
+}
@@ -1,19 +1,38 @@
 package tests;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
+import Backend.Algorithm.AnalysisConfig;
+import Backend.Algorithm.Excerpts;
+import Backend.Algorithm.PcmSource;
 import Backend.Algorithm.Reader;
 import Backend.Algorithm.Reader.Channel;
+import Backend.Algorithm.SilenceGate;
+import Backend.Algorithm.Simd;
+import Backend.Algorithm.Spectrogram;
 import Backend.Algorithm.Transform;
+import Backend.Helper.AnalysisExecutor;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+import javax.sound.sampled.AudioFileFormat;
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
 import org.junit.jupiter.api.*;
+import org.junit.jupiter.api.io.TempDir;
 
 public class TransformTests {
   private static final float errorBound = 0.25f;
 
   // Passing requirements:
-  // - frequencyAmplitudes.length / TIME_RESOLUTION ~ Duration
+  // - frequencyAmplitudes.length / time resolution ~ Duration
   // - The loudest frequency bin is the one closest to 1,000 Hz
   // - The loudest frequency bin is around -6dB (or 0.5 * Short.MAX_VALUE).
   @Test
@@ -24,7 +43,7 @@ public class TransformTests {
 
     // test duration
     assertEquals(reader.getDuration(), (frequencyAmplitudes.length /
-        Transform.TIME_RESOLUTION), errorBound, "Incorrect duration of transform.");
+        AnalysisConfig.BALANCED.getTimeResolution()), errorBound, "Incorrect duration of transform.");
 
     // gather averages
     double[] averages = new double[frequencyAmplitudes[0].length];
@@ -48,11 +67,11 @@ public class TransformTests {
     // test loudest frequency bin by frequency
     assertTrue(maxIndex > 0 && maxIndex < averages.length - 1,
         "Loudest frequency should not be first/last bin");
-    assertTrue(Math.abs(Transform.frequencyAtBin(maxIndex) - 1000) <
-        Math.abs(Transform.frequencyAtBin(maxIndex-1) - 1000),
+    assertTrue(Math.abs(AnalysisConfig.BALANCED.frequencyAtBin(maxIndex) - 1000) <
+        Math.abs(AnalysisConfig.BALANCED.frequencyAtBin(maxIndex-1) - 1000),
         "Loudest frequency is too far under 1000Hz");
-    assertTrue(Math.abs(Transform.frequencyAtBin(maxIndex) - 1000) <
-        Math.abs(Transform.frequencyAtBin(maxIndex+1) - 1000),
+    assertTrue(Math.abs(AnalysisConfig.BALANCED.frequencyAtBin(maxIndex) - 1000) <
+        Math.abs(AnalysisConfig.BALANCED.frequencyAtBin(maxIndex+1) - 1000),
         "Loudest frequency is too far over 1000Hz");
 
     // test loudest frequency bin by amplitude
@@ -78,7 +97,7 @@ public class TransformTests {
   */
 
   // Passing requirements:
-  // - frequencyAmplitudes.length / TIME_RESOLUTION ~ Duration
+  // - frequencyAmplitudes.length / time resolution ~ Duration
   // - Flat frequency balance.
   @Test
   public void testNoiseTransform() throws IOException {
@@ -88,7 +107,7 @@ public class TransformTests {
 
     // test duration
     assertEquals(reader.getDuration(), (frequencyAmplitudes.length /
-        Transform.TIME_RESOLUTION), errorBound, "Incorrect duration of transform.");
+        AnalysisConfig.BALANCED.getTimeResolution()), errorBound, "Incorrect duration of transform.");
 
     // gather averages
     double[] averages = new double[frequencyAmplitudes[0].length];
@@ -111,7 +130,348 @@ public class TransformTests {
     for (int i = 0; i < averages.length; i++) {
       double ratio = (averages[i] / overallAverage);
       assertEquals(1.0, ratio, errorBound, "Average of frequency " +
-          (Transform.frequencyAtBin(i)) + " is outside error bound (1 +- " + errorBound + ")");
+          (AnalysisConfig.BALANCED.frequencyAtBin(i)) + " is outside error bound (1 +- " + errorBound + ")");
+    }
+  }
+
+  // Passing requirement: Streaming transform gives the same result as reading the whole file first.
+  @Test
+  public void testStreamingTransform() throws IOException {
+    String file = "src/test/resource/tone_1000hz.wav";
+    Transform whole = new Transform(Reader.readFile(file));
+    Transform streamed;
+    try (PcmSource source = Reader.openStream(file)) {
+      streamed = new Transform(source);
+    }
+
+    for (Channel channel : Channel.values()) {
+      float[][] expected = whole.getFrequencyAmplitudes(channel);
+      float[][] actual = streamed.getFrequencyAmplitudes(channel);
+      assertEquals(expected.length, actual.length, "Streaming transform has wrong duration.");
+      for (int i = 0; i < expected.length; i++)
+        assertArrayEquals(expected[i], actual[i], "Streaming transform differs at time sample " + i);
+    }
+  }
+
+  // Passing requirement: getFrequencyAmplitudes and the spectrogram's rows are the spectrogram's own storage, with
+  // the same values as get.
+  @Test
+  public void testSpectrogram() throws IOException {
+    Transform transform = new Transform(Reader.readFile("src/test/resource/tone_1000hz.wav"));
+    Spectrogram spectrogram = transform.getSpectrogram(Channel.LEFT);
+    float[][] frequencyAmplitudes = transform.getFrequencyAmplitudes(Channel.LEFT);
+
+    assertEquals(frequencyAmplitudes.length, spectrogram.getFrameCount());
+    assertEquals(AnalysisConfig.BALANCED.getFrequencyResolution(), spectrogram.getBinCount());
+    assertSame(spectrogram.getRows(), frequencyAmplitudes);
+    for (int i = 0; i < frequencyAmplitudes.length; i++) {
+      assertSame(spectrogram.getRow(i), frequencyAmplitudes[i]);
+      for (int j = 0; j < AnalysisConfig.BALANCED.getFrequencyResolution(); j++)
+        assertEquals(frequencyAmplitudes[i][j], spectrogram.get(i, j));
+    }
+  }
+
+  // Passing requirements:
+  // - Each preset's transform has its time and frequency resolution.
+  // - The loudest frequency bin is still the one closest to 1,000 Hz.
+  // - Presets are found again from their save file header.
+  // - An unknown preset name gives the fallback, as a mistyped analysis.preset does for getDefault.
+  @Test
+  public void testPresets() throws IOException {
+    Reader reader = Reader.readFile("src/test/resource/tone_1000hz.wav");
+    for (AnalysisConfig config : new AnalysisConfig[]{AnalysisConfig.FAST, AnalysisConfig.PRECISE}) {
+      Transform transform = new Transform(reader, config);
+      Spectrogram spectrogram = transform.getSpectrogram(Channel.LEFT);
+      assertSame(config, transform.getConfig());
+      assertEquals(config.getFrequencyResolution(), spectrogram.getBinCount());
+      assertEquals(reader.getDuration(), spectrogram.getFrameCount() / config.getTimeResolution(), errorBound,
+          "Incorrect duration of " + config + " transform.");
+
+      int maxIndex = 0;
+      double[] averages = new double[spectrogram.getBinCount()];
+      for (int j = 0; j < averages.length; j++) {
+        for (int i = 0; i < spectrogram.getFrameCount(); i++)
+          averages[j] += spectrogram.get(i, j);
+        if (averages[j] > averages[maxIndex])
+          maxIndex = j;
+      }
+      for (int j = 0; j < averages.length; j++)
+        assertTrue(Math.abs(config.frequencyAtBin(maxIndex) - 1000) <= Math.abs(config.frequencyAtBin(j) - 1000),
+            "Loudest " + config + " bin is not closest to 1000 Hz.");
+
+      assertSame(config, AnalysisConfig.fromHeader(config.toHeader()));
+    }
+    assertSame(AnalysisConfig.PRECISE, AnalysisConfig.preset("precise", AnalysisConfig.BALANCED));
+    assertSame(AnalysisConfig.BALANCED, AnalysisConfig.preset("PRECIS", AnalysisConfig.BALANCED));
+  }
+
+  // Passing requirements:
+  // - Silence at the start and end and the long gap in the middle are left out, the padding is kept.
+  // - Streaming trims the same time samples, and starts the same regions, as reading the whole file first.
+  @Test
+  public void testSilenceGate(@TempDir Path folder) throws IOException {
+    // 1 second of silence, 2 of tone, 3 of silence, 2 of tone, 1 of silence.
+    int sampleRate = 44100;
+    double[][] tones = {{1, 3}, {6, 8}};
+    byte[] bytes = new byte[9 * sampleRate * 2];
+    for (double[] tone : tones)
+      for (int i = (int) (tone[0] * sampleRate); i < tone[1] * sampleRate; i++) {
+        short sample = (short) (0.5 * Short.MAX_VALUE * Math.sin(2 * Math.PI * 1000 * i / sampleRate));
+        bytes[2 * i] = (byte) sample;
+        bytes[(2 * i) + 1] = (byte) (sample >> 8);
+      }
+    File file = folder.resolve("gaps.wav").toFile();
+    AudioFormat format = new AudioFormat(sampleRate, 16, 1, true, false);
+    AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(bytes), format, bytes.length / 2),
+        AudioFileFormat.Type.WAVE, file);
+
+    Reader reader = Reader.readFile(file.getPath());
+    Transform whole = new Transform(reader, AnalysisConfig.BALANCED, Transform.Engine.DIRECT, SilenceGate.DEFAULT);
+    double padding = SilenceGate.DEFAULT.getPaddingSeconds();
+    double[][] expected = {{0, 1 - padding}, {3 + padding, 6 - padding}, {8 + padding, 9}};
+    double[][] trimmed = whole.getTrimmedSeconds();
+    assertEquals(expected.length, trimmed.length, "Wrong number of trimmed ranges.");
+    for (int i = 0; i < expected.length; i++)
+      assertArrayEquals(expected[i], trimmed[i], 0.1, "Trimmed range " + i + " is in the wrong place.");
+    double kept = 9;
+    for (double[] range : trimmed)
+      kept -= range[1] - range[0];
+    assertEquals(kept * AnalysisConfig.BALANCED.getTimeResolution(),
+        whole.getSpectrogram(Channel.LEFT).getFrameCount(), 1);
+
+    Transform streamed;
+    try (PcmSource source = reader.stream()) {
+      streamed = new Transform(source, AnalysisConfig.BALANCED, Transform.Engine.DIRECT, SilenceGate.DEFAULT);
+    }
+    assertArrayEquals(whole.getSpectrogram(Channel.LEFT).getRows(),
+        streamed.getSpectrogram(Channel.LEFT).getRows(), "Streaming transform trimmed differently.");
+    assertEquals(2, whole.getRegionStarts().length, "Wrong number of regions between gaps.");
+    assertArrayEquals(whole.getRegionStarts(), streamed.getRegionStarts(), "Streaming transform has other regions.");
+    assertEquals(0, new Transform(reader).getTrimmedSeconds().length, "Transform without a gate trimmed audio.");
+  }
+
+  // Passing requirements:
+  // - Each excerpt's time samples are the same as the whole song's at the same place.
+  // - The preview is approximate, and a song shorter than the excerpts is transformed whole.
+  @Test
+  public void testExcerpts() throws IOException {
+    Reader reader = Reader.readFile("src/test/resource/pink_noise.wav");
+    double timeResolution = AnalysisConfig.BALANCED.getTimeResolution();
+    Excerpts excerpts = new Excerpts(2, 0.2, 0.5, 0.8);
+    Transform preview = new Transform(reader, AnalysisConfig.BALANCED, Transform.Engine.DIRECT, excerpts);
+    Spectrogram whole = new Transform(reader, AnalysisConfig.BALANCED).getSpectrogram(Channel.LEFT);
+    Spectrogram previewed = preview.getSpectrogram(Channel.LEFT);
+    assertTrue(preview.isApproximate(), "Preview isn't approximate.");
+    assertEquals(3 * 2 * timeResolution, previewed.getFrameCount(), 3, "Preview has wrong duration.");
+
+    // Left out before each excerpt and after the last one.
+    double[][] trimmed = preview.getTrimmedSeconds();
+    assertEquals(4, trimmed.length, "Wrong number of trimmed ranges.");
+    float[] expected = new float[whole.getBinCount()], actual = new float[whole.getBinCount()];
+    int frame = 0;
+    for (int i = 0; i < 3; i++) {
+      int start = (int) Math.round(trimmed[i][1] * timeResolution);
+      int end = (int) Math.round(trimmed[i + 1][0] * timeResolution);
+      double center = (start + end) / 2.0 / timeResolution / reader.getDuration();
+      assertEquals(excerpts.getPositions()[i], center, 0.01, "Excerpt " + i + " is in the wrong place.");
+      for (int j = start; j < end; j++, frame++) {
+        whole.getFrame(j, expected);
+        previewed.getFrame(frame, actual);
+        assertArrayEquals(expected, actual, "Excerpt " + i + " differs at time sample " + j);
+      }
+    }
+
+    Transform all = new Transform(reader, AnalysisConfig.BALANCED, Transform.Engine.DIRECT,
+        new Excerpts(5, 0.2, 0.5, 0.8));
+    assertFalse(all.isApproximate(), "Transform of the whole song is approximate.");
+    assertEquals(whole.getFrameCount(), all.getSpectrogram(Channel.LEFT).getFrameCount());
+  }
+
+  // Passing requirement: FFT engine is within Transform.FFT_TOLERANCE of the direct engine.
+  @Test
+  public void testFftEngine() throws IOException {
+    assertEngineMatchesDirect(Transform.Engine.FFT, Transform.FFT_TOLERANCE);
+  }
+
+  // Passing requirements:
+  // - Pyramid engine is within Transform.PYRAMID_TOLERANCE of the direct engine.
+  // - Streaming gives the same result as reading the whole file first.
+  @Test
+  public void testPyramidEngine() throws IOException {
+    assertEngineMatchesDirect(Transform.Engine.PYRAMID, Transform.PYRAMID_TOLERANCE);
+
+    String file = "src/test/resource/pink_noise.wav";
+    float[][] whole = new Transform(Reader.readFile(file), Transform.Engine.PYRAMID)
+        .getFrequencyAmplitudes(Channel.LEFT);
+    float[][] streamed;
+    try (PcmSource source = Reader.openStream(file)) {
+      streamed = new Transform(source, Transform.Engine.PYRAMID).getFrequencyAmplitudes(Channel.LEFT);
+    }
+    assertEquals(whole.length, streamed.length, "Streaming transform has wrong duration.");
+    for (int i = 0; i < whole.length; i++)
+      assertArrayEquals(whole[i], streamed[i], "Streaming transform differs at time sample " + i);
+  }
+
+  // Passing requirement: Vector API loops are within errorBound / 1000 of the scalar loops. Both sum in floats, so
+  // they only differ by the order of the additions.
+  @Test
+  public void testSimdMatchesScalar() throws IOException {
+    Assumptions.assumeTrue(Simd.isAvailable(), "Run mvn -Psimd to test SIMD.");
+    Reader reader = Reader.readFile("src/test/resource/pink_noise.wav");
+    float[][] scalar, vector;
+    try {
+      Simd.setEnabled(false);
+      scalar = new Transform(reader).getFrequencyAmplitudes(Channel.LEFT);
+      Simd.setEnabled(true);
+      vector = new Transform(reader).getFrequencyAmplitudes(Channel.LEFT);
+    } finally {
+      Simd.setEnabled(true);
+    }
+
+    for (int i = 0; i < scalar.length; i++)
+      for (int j = 0; j < scalar[i].length; j++)
+        assertEquals(scalar[i][j], vector[i][j], Math.max(scalar[i][j], 1) * errorBound / 1000,
+            "Vector transform differs at time sample " + i + ", bin " + j);
+  }
+
+  // Passing requirements:
+  // - A new sample rate adds exactly one kernel bank, two padded float kernels per bin, and later transforms at the
+  //   same rate reuse it.
+  // - The DIRECT transform is within errorBound / 1000 of summing window * sample * cos/sin for every window, the
+  //   way each kernel was made on every call before the banks.
+  @Test
+  public void testKernelBank(@TempDir Path folder) throws IOException {
+    // 3 seconds of noise at a sample rate no other test uses, so its bank isn't made yet.
+    int sampleRate = 11025;
+    byte[] bytes = new byte[3 * sampleRate * 2];
+    Random random = new Random(5);
+    for (int i = 0; i < bytes.length; i += 2) {
+      short sample = (short) (random.nextGaussian() * 3000);
+      bytes[i] = (byte) sample;
+      bytes[i + 1] = (byte) (sample >> 8);
+    }
+    File file = folder.resolve("noise.wav").toFile();
+    AudioFormat format = new AudioFormat(sampleRate, 16, 1, true, false);
+    AudioSystem.write(new AudioInputStream(new ByteArrayInputStream(bytes), format, bytes.length / 2),
+        AudioFileFormat.Type.WAVE, file);
+    Reader reader = Reader.readFile(file.getPath());
+    AnalysisConfig config = AnalysisConfig.BALANCED;
+
+    int[] lengths = new int[config.getFrequencyResolution()];
+    long expectedBytes = 0;
+    for (int j = 0; j < lengths.length; j++) {
+      double filterWidth = config.getBottomFilterWidth()
+          * Math.pow(Transform.TOP_BOTTOM_RATIO, (double) j / lengths.length);
+      lengths[j] = (int) Math.ceil(sampleRate / filterWidth);
+      expectedBytes += 2L * ((lengths[j] + 15) / 16 * 16) * Float.BYTES;
+    }
+    long before = Transform.getKernelBankBytes();
+    Spectrogram spectrogram = new Transform(reader, config, Transform.Engine.DIRECT).getSpectrogram(Channel.LEFT);
+    assertEquals(expectedBytes, Transform.getKernelBankBytes() - before, "Kernel bank has the wrong size.");
+    new Transform(reader, config, Transform.Engine.DIRECT);
+    assertEquals(expectedBytes, Transform.getKernelBankBytes() - before, "Kernel bank wasn't reused.");
+
+    // Time samples whose longest window is inside the audio.
+    short[] samples = reader.getChannel(Channel.LEFT);
+    for (int i = 40; i < 80; i += 7)
+      for (int j = 0; j < lengths.length; j++) {
+        double expected = directReference(samples, config, sampleRate, i, j);
+        assertEquals(expected, spectrogram.get(i, j), Math.max(expected, 1) * errorBound / 1000,
+            "Kernel bank transform differs at time sample " + i + ", bin " + j);
+      }
+  }
+
+  // Passing requirements:
+  // - Windows that run past either end of the audio see it mirrored back in and inverted, within errorBound / 1000
+  //   of working each window out on its own.
+  // - Streaming, which pads each batch's buffer separately, gives exactly the same time samples as the whole file.
+  @Test
+  public void testMirroredEnds() throws IOException {
+    Reader reader = Reader.readFile("src/test/resource/pink_noise.wav");
+    AnalysisConfig config = AnalysisConfig.BALANCED;
+    Spectrogram whole = new Transform(reader, config, Transform.Engine.DIRECT).getSpectrogram(Channel.LEFT);
+
+    short[] samples = reader.getChannel(Channel.LEFT);
+    int frames = whole.getFrameCount();
+    for (int i : new int[]{0, 1, 2, frames - 3, frames - 2, frames - 1})
+      for (int j = 0; j < whole.getBinCount(); j++) {
+        double expected = directReference(samples, config, reader.getSampleRate(), i, j);
+        assertEquals(expected, whole.get(i, j), Math.max(expected, 1) * errorBound / 1000,
+            "Mirrored end differs at time sample " + i + ", bin " + j);
+      }
+
+    Spectrogram streamed;
+    try (PcmSource source = reader.stream()) {
+      streamed = new Transform(source, config, Transform.Engine.DIRECT).getSpectrogram(Channel.LEFT);
+    }
+    assertArrayEquals(whole.getRows(), streamed.getRows(), "Streaming transform differs from whole file.");
+  }
+
+  // Passing requirement: Every engine gives exactly the same spectrogram on 1 and 16 cores. With 16 cores the target
+  // task cost is up to 16 times smaller, so the work is split much further over time, and by cost over bins.
+  @Test
+  public void testCostBalancedSplit() throws IOException {
+    Reader reader = Reader.readFile("src/test/resource/pink_noise.wav");
+    AnalysisExecutor shared = AnalysisExecutor.getShared();
+    for (Transform.Engine engine : Transform.Engine.values()) {
+      float[][][] results = new float[2][][];
+      int[] cores = {1, 16};
+      try {
+        for (int i = 0; i < cores.length; i++)
+          try (AnalysisExecutor executor = new AnalysisExecutor(cores[i], "transform-test-", cores[i])) {
+            AnalysisExecutor.setShared(executor);
+            results[i] = new Transform(reader, engine).getFrequencyAmplitudes(Channel.LEFT);
+          }
+      } finally {
+        AnalysisExecutor.setShared(shared);
+      }
+      assertEquals(results[0].length, results[1].length, engine + " engine has wrong duration.");
+      for (int i = 0; i < results[0].length; i++)
+        assertArrayEquals(results[0][i], results[1][i], engine + " engine differs at time sample " + i);
+    }
+  }
+
+  // Bin j of time sample i worked out on its own, the way Transform did before kernel banks and padded buffers:
+  // the windowed kernel is made on the spot, and samples past the ends of the audio are mirrored back in and
+  // inverted, or 0 where even mirroring doesn't reach.
+  private static double directReference(short[] samples, AnalysisConfig config, int sampleRate, int i, int j) {
+    double filterWidth = config.getBottomFilterWidth()
+        * Math.pow(Transform.TOP_BOTTOM_RATIO, (double) j / config.getFrequencyResolution());
+    int length = (int) Math.ceil(sampleRate / filterWidth);
+    int start = (int) (i * (sampleRate / config.getTimeResolution())) - (length / 2);
+    double step = 2 * Math.PI * config.frequencyAtBin(j) / sampleRate;
+    double real = 0, complex = 0;
+    for (int n = 0; n < length; n++) {
+      int index = start + n;
+      double sample = 0;
+      if (index >= 0 && index < samples.length) {
+        sample = samples[index];
+      } else {
+        int mirrored = (index < 0) ? -index : (2 * samples.length) - index - 2;
+        if (mirrored >= 0 && mirrored < samples.length)
+          sample = (short) -samples[mirrored];
+      }
+      double windowed = Transform.window(n, length) * sample;
+      real += windowed * Math.cos(n * step);
+      complex += windowed * Math.sin(n * step);
+    }
+    return Math.sqrt((real * real) + (complex * complex)) / length;
+  }
+
+  private void assertEngineMatchesDirect(Transform.Engine engine, double tolerance) throws IOException {
+    for (String file : new String[]{"src/test/resource/tone_1000hz.wav", "src/test/resource/pink_noise.wav"}) {
+      Reader reader = Reader.readFile(file);
+      float[][] direct = new Transform(reader, Transform.Engine.DIRECT).getFrequencyAmplitudes(Channel.LEFT);
+      float[][] other = new Transform(reader, engine).getFrequencyAmplitudes(Channel.LEFT);
+      assertEquals(direct.length, other.length, engine + " engine has wrong duration.");
+
+      float loudest = 0;
+      for (float[] row : direct)
+        for (float amplitude : row)
+          loudest = Math.max(loudest, amplitude);
+      for (int i = 0; i < direct.length; i++)
+        assertArrayEquals(direct[i], other[i], (float) (tolerance * loudest),
+            engine + " engine differs at time sample " + i + " of " + file);
     }
   }
 }